@@ -130,7 +130,7 @@ public class AudioEnhancer {
         };
         
         // 尝试加载TensorFlow Lite模型
-        try {
+        try (Spans.Span span = Spans.begin("AudioEnhancer.loadModels")) {
             // 加载第一阶段模型
             MappedByteBuffer model1Buffer = loadModelFile("dtln_stage1.tflite");
             Interpreter.Options options1 = new Interpreter.Options();
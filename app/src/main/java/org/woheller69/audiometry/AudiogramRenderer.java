@@ -0,0 +1,85 @@
+package org.woheller69.audiometry;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Draws a small audiogram of one test into a bitmap, for thumbnails in the test list.
+ * The axes are those of AudiogramView: frequency on a log scale, dB HL from AudiogramView.YMIN at
+ * the top to AudiogramView.YMAX at the bottom. There are no labels, only a grid line every 20 dB
+ * and per octave.
+ * Paints and path are reused, one renderer must only be used by one thread.
+ */
+public class AudiogramRenderer {
+    private static final float OCTAVES = (float) (Math.log(testFrequencies[testFrequencies.length - 1] / 125.0) / Math.log(2));
+
+    private final int width;
+    private final int height;
+    private final float margin;
+    private final int background;
+    private final Paint gridPaint = new Paint();
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path path = new Path();
+    private final int[] colors;  //right, left
+
+    /**
+     * @param colors - line colors of the right and left ear
+     */
+    public AudiogramRenderer(int width, int height, int backgroundColor, int gridColor, int[] colors) {
+        this.width = width;
+        this.height = height;
+        this.background = backgroundColor;
+        this.colors = colors;
+        margin = height / 12f;
+        gridPaint.setColor(gridColor);
+        gridPaint.setStrokeWidth(1);
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(Math.max(2, height / 36f));
+        linePaint.setStrokeJoin(Paint.Join.ROUND);
+    }
+
+    /**
+     * @param thresholds - thresholds in dB re full scale as stored, NaN where not tested
+     * @param calibration - converts the thresholds to dB HL
+     */
+    public Bitmap render(double[][] thresholds, CalibrationRepository.Snapshot calibration) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(background);
+        for (float level = AudiogramView.YMIN; level <= AudiogramView.YMAX; level += 20) {
+            float y = y(level);
+            canvas.drawLine(margin, y, width - margin, y, gridPaint);
+        }
+        for (int octave = 0; octave <= OCTAVES; octave++) {
+            float x = x(octave);
+            canvas.drawLine(x, margin, x, height - margin, gridPaint);
+        }
+        for (int s = 0; s < 2; s++) {
+            path.rewind();
+            boolean started = false;
+            for (int i = 0; i < testFrequencies.length; i++) {
+                if (Double.isNaN(thresholds[s][i])) continue;  //frequency not tested
+                float level = Math.max(AudiogramView.YMIN, Math.min(AudiogramView.YMAX, (float) (thresholds[s][i] - calibration.get(i))));
+                float x = x((float) (Math.log(testFrequencies[i] / 125.0) / Math.log(2)));
+                if (started) path.lineTo(x, y(level));
+                else path.moveTo(x, y(level));
+                started = true;
+            }
+            linePaint.setColor(colors[s]);
+            canvas.drawPath(path, linePaint);
+        }
+        return bitmap;
+    }
+
+    private float x(float octave) {
+        return margin + octave / OCTAVES * (width - 2 * margin);
+    }
+
+    private float y(float level) {
+        return margin + (level - AudiogramView.YMIN) / (AudiogramView.YMAX - AudiogramView.YMIN) * (height - 2 * margin);
+    }
+}
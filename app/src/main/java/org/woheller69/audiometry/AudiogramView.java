@@ -0,0 +1,213 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import java.util.Arrays;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Audiogram of one test drawn directly on the canvas: frequency on a log scale, dB HL increasing
+ * downwards, right ear as O and left ear as X connected by lines.
+ * Thresholds are copied into arrays allocated once, paths and labels are built when the data,
+ * the zoom or the size changes, so onDraw() does not allocate.
+ */
+public class AudiogramView extends View {
+    static final float YMIN = -20f;
+    static final float YMAX = 100f;
+    private static final float STEP = 10f;  // dB between grid lines
+    private static final int MAX_GRID_LINES = 64;
+
+    private final float[][] levels = new float[2][testFrequencies.length];  //right=0, left=1, dB HL, NaN where not tested
+    private final float[] octaves = new float[testFrequencies.length];      //octaves above 125 Hz
+    private final float maxOctave;
+    private final String[] frequencyLabels = new String[testFrequencies.length];  //e.g. 500, 1k
+    private final Path[] paths = {new Path(), new Path()};
+    private final float[] pointX = new float[testFrequencies.length];
+    private final float[][] pointY = new float[2][testFrequencies.length];
+    private final float[] gridLevels = new float[MAX_GRID_LINES];
+    private final float[] gridY = new float[MAX_GRID_LINES];
+    private final String[] gridLabels = new String[MAX_GRID_LINES];
+    private int gridLines = 0;
+    private final Paint gridPaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint[] linePaints = {new Paint(Paint.ANTI_ALIAS_FLAG), new Paint(Paint.ANTI_ALIAS_FLAG)};
+    private final float symbolSize;
+    private String description = "";
+    private final String[] legend = {"O", "X"};
+    private boolean hasData = false;
+    private boolean zoomed = false;
+    private float min = YMIN;
+    private float max = YMAX;
+    private float left, top, right, bottom;  //plot area
+
+    public AudiogramView(Context context) {
+        this(context, null);
+    }
+
+    public AudiogramView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        for (int i = 0; i < testFrequencies.length; i++) {
+            octaves[i] = (float) (Math.log(testFrequencies[i] / 125.0) / Math.log(2));
+            int f = testFrequencies[i];
+            frequencyLabels[i] = f >= 1000 ? f / 1000 + "k" : Integer.toString(f);
+        }
+        maxOctave = octaves[octaves.length - 1];
+        for (float[] ear : levels) Arrays.fill(ear, Float.NaN);
+        float textSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 15, getResources().getDisplayMetrics());
+        symbolSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 5, getResources().getDisplayMetrics());
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(textSize);
+        gridPaint.setColor(Color.GRAY);
+        gridPaint.setStrokeWidth(1);
+        for (Paint paint : linePaints) {
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeWidth(symbolSize / 2);
+            paint.setStrokeJoin(Paint.Join.ROUND);
+        }
+    }
+
+    /**
+     * @param colors - colors of the right and the left ear
+     * @param labels - legend texts of the right and the left ear
+     */
+    public void setEars(int[] colors, String[] labels) {
+        for (int s = 0; s < 2; s++) {
+            linePaints[s].setColor(colors[s]);
+            legend[s] = (s == 0 ? "O " : "X ") + labels[s];
+        }
+        invalidate();
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+        invalidate();
+    }
+
+    /**
+     * @param right, left - thresholds in dB HL for PerformTest.testFrequencies, NaN where not tested
+     */
+    public void setThresholds(float[] right, float[] left) {
+        System.arraycopy(right, 0, levels[0], 0, levels[0].length);
+        System.arraycopy(left, 0, levels[1], 0, levels[1].length);
+        hasData = true;
+        update();
+    }
+
+    public void clear() {
+        for (float[] ear : levels) Arrays.fill(ear, Float.NaN);
+        hasData = false;
+        update();
+    }
+
+    /**
+     * @param zoomed - false shows YMIN to YMAX, true the range of the thresholds
+     */
+    public void setZoomed(boolean zoomed) {
+        this.zoomed = zoomed;
+        update();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        update();
+    }
+
+    /**
+     * Computes range, grid, labels and paths for the current data and size
+     */
+    private void update() {
+        min = YMIN;
+        max = YMAX;
+        if (zoomed && hasData) {
+            float low = Float.MAX_VALUE;
+            float high = -Float.MAX_VALUE;
+            for (float[] ear : levels) {
+                for (float level : ear) {
+                    if (Float.isNaN(level)) continue;
+                    low = Math.min(low, level);
+                    high = Math.max(high, level);
+                }
+            }
+            if (low <= high) {
+                min = (float) Math.floor(low / STEP) * STEP - STEP;
+                max = (float) Math.ceil(high / STEP) * STEP + STEP;
+            }
+        }
+        float step = STEP;
+        while ((max - min) / step + 1 > MAX_GRID_LINES) step *= 2;
+        gridLines = 0;
+        for (float level = (float) Math.ceil(min / step) * step; level <= max && gridLines < MAX_GRID_LINES; level += step) {
+            gridLevels[gridLines] = level;
+            gridLabels[gridLines++] = Integer.toString(Math.round(level));
+        }
+
+        float textSize = textPaint.getTextSize();
+        left = textPaint.measureText("-100") + textSize / 2;
+        right = getWidth() - textSize;
+        top = 2.5f * textSize;
+        bottom = getHeight() - 1.5f * textSize;
+        for (int k = 0; k < gridLines; k++) gridY[k] = y(gridLevels[k]);
+        for (int i = 0; i < octaves.length; i++) pointX[i] = left + octaves[i] / maxOctave * (right - left);
+        for (int s = 0; s < 2; s++) {
+            paths[s].rewind();
+            boolean started = false;
+            for (int i = 0; i < octaves.length; i++) {
+                if (Float.isNaN(levels[s][i])) continue;
+                pointY[s][i] = y(levels[s][i]);
+                if (started) paths[s].lineTo(pointX[i], pointY[s][i]);
+                else paths[s].moveTo(pointX[i], pointY[s][i]);
+                started = true;
+            }
+        }
+        invalidate();
+    }
+
+    private float y(float level) {
+        return top + (level - min) / (max - min) * (bottom - top);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float textSize = textPaint.getTextSize();
+        canvas.drawText(description, left, textSize, textPaint);
+        for (int k = 0; k < gridLines; k++) {
+            canvas.drawLine(left, gridY[k], right, gridY[k], gridPaint);
+            canvas.drawText(gridLabels[k], 0, gridY[k] + textSize / 3, textPaint);
+        }
+        for (int i = 0; i < pointX.length; i++) {
+            canvas.drawLine(pointX[i], top, pointX[i], bottom, gridPaint);
+            canvas.drawText(frequencyLabels[i], pointX[i] - textPaint.measureText(frequencyLabels[i]) / 2, bottom + 1.2f * textSize, textPaint);
+        }
+        if (!hasData) return;
+        float legendX = left;
+        for (int s = 0; s < 2; s++) {
+            canvas.drawPath(paths[s], linePaints[s]);
+            for (int i = 0; i < pointX.length; i++) {
+                if (Float.isNaN(levels[s][i])) continue;
+                float x = pointX[i];
+                float y = pointY[s][i];
+                if (s == 0) {
+                    canvas.drawCircle(x, y, symbolSize, linePaints[s]);
+                } else {
+                    canvas.drawLine(x - symbolSize, y - symbolSize, x + symbolSize, y + symbolSize, linePaints[s]);
+                    canvas.drawLine(x - symbolSize, y + symbolSize, x + symbolSize, y - symbolSize, linePaints[s]);
+                }
+            }
+            int color = textPaint.getColor();
+            textPaint.setColor(linePaints[s].getColor());
+            canvas.drawText(legend[s], legendX, 2.1f * textSize, textPaint);
+            textPaint.setColor(color);
+            legendX += textPaint.measureText(legend[s]) + textSize;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.woheller69.audiometry;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+
+/**
+ * Runs before any activity, service or provider of the process is created. An interrupted restore
+ * is finished or rolled back here, so no file is opened before the files directory is consistent,
+ * whichever activity the process starts with.
+ */
+public class AudiometryApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Backup.recoverRestore(this);  //before any file is read
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) Spans.trackFrames(this);
+    }
+}
@@ -4,23 +4,45 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Build;
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class Backup {
     public static final int PERMISSION_REQUEST_CODE = 123;
+    private static final String ENTRY_PREFIX = "files/";  // restore extracts below the data directory
+    private static final String INFO_ENTRY = "BackupInfo";
+    private static final String STAGING_DIR = "files.restore";  // next to the files directory
+    private static final String OLD_DIR = "files.old";
+    private static final String SNAPSHOT_DIR = "backup.snapshot";  // in the cache directory
 
     public static boolean checkPermissionStorage (Context context) {
             int result = ContextCompat.checkSelfPermission(context, Manifest.permission.READ_EXTERNAL_STORAGE);
@@ -46,28 +68,352 @@ public class Backup {
         dialog.show();
     }
 
-    public static void zipExtract(Context context, File targetDir, Uri zipFile) {
-        ZipEntry zipEntry;
-        int readLen;
-        byte[] readBuffer = new byte[4096];
+    /**
+     * Backs up the files of the app, called off the UI thread.
+     * The first backup, or one after the full archive name.zip was replaced or removed, writes all
+     * files into name.zip. Later backups write only files changed since the last backup, according
+     * to the BackupManifest, into a delta archive name-timestamp.zip. Of a file that only grew with
+     * an unchanged beginning, e.g. the results log, only the new bytes are archived. Each delta
+     * records the timestamp of the archive before it, so a restore can detect a missing delta.
+     * The bytes to archive are copied into a snapshot directory in the cache while the file is
+     * hashed, under the lock of the ResultsLog for the log, so the archive matches the manifest
+     * even if a test is appended or deleted while the backup is written.
+     * Each archive starts with the entry INFO_ENTRY (see ArchiveInfo) and is streamed into a .tmp
+     * file which is renamed only when complete, so a failed or cancelled backup changes nothing.
+     * @return false if cancelled
+     */
+    public static boolean zipCreate(Context context, File dir, String name, AtomicBoolean cancel, ProgressTask.Progress progress) throws IOException {
+        File snapshotDir = new File(context.getCacheDir(), SNAPSHOT_DIR);
+        deleteRecursively(snapshotDir);
+        if (!snapshotDir.mkdirs()) throw new IOException("Cannot create " + snapshotDir);
         try {
-            InputStream src = context.getContentResolver().openInputStream(zipFile);
-            try {
-                try (ZipInputStream zipInputStream = new ZipInputStream(src)) {
+            return zipCreate(context, dir, name, snapshotDir, cancel, progress);
+        } finally {
+            deleteRecursively(snapshotDir);
+        }
+    }
+
+    private static boolean zipCreate(Context context, File dir, String name, File snapshotDir, AtomicBoolean cancel, ProgressTask.Progress progress) throws IOException {
+        BackupManifest manifest = BackupManifest.load(context);
+        File base = new File(dir, name + ".zip");
+        boolean full = manifest.baseTimestamp == 0 || manifest.lastTimestamp == 0 || !base.exists() || base.length() != manifest.baseSize;
+        long timestamp = System.currentTimeMillis();
+        BackupManifest next = new BackupManifest();
+        next.baseTimestamp = full ? timestamp : manifest.baseTimestamp;
+        next.baseSize = manifest.baseSize;
+        next.lastTimestamp = manifest.lastTimestamp;
+
+        List<String> names = new ArrayList<>();
+        List<File> snapshots = new ArrayList<>();  // the bytes of each file to archive
+        byte[] readBuffer = new byte[65536];
+        StringBuilder info = new StringBuilder();
+        info.append("timestamp\t").append(timestamp).append('\n');
+        info.append("base\t").append(next.baseTimestamp).append('\n');
+        if (!full) info.append("previous\t").append(manifest.lastTimestamp).append('\n');
+        long total = 0;
+        File[] all = context.getFilesDir().listFiles();
+        if (all != null) {
+            for (File file : all) {
+                if (!file.isFile() || file.getName().endsWith(".tmp")) continue;  //unfinished atomic writes
+                BackupManifest.Entry old = full ? null : manifest.entries.get(file.getName());
+                long size = file.length();
+                long modified = file.lastModified();
+                if (old != null && old.size == size && old.modified == modified) {
+                    next.entries.put(file.getName(), old);
+                    continue;
+                }
+                String[] hashes;
+                long prefix = old != null && old.size <= size ? old.size : -1;
+                long from = 0;
+                File snapshot = new File(snapshotDir, file.getName());
+                Object lock = file.getName().equals(ResultsLog.FILE_NAME) ? ResultsLog.get(context) : null;
+                if (lock == null) lock = file;
+                synchronized (lock) {  //no append or delete in the log between hashing and copying
+                    size = file.length();
+                    modified = file.lastModified();
+                    hashes = BackupManifest.hash(file, size, prefix);
+                    if (old != null && old.hash.equals(hashes[0])) {  //touched, content unchanged
+                        next.entries.put(file.getName(), new BackupManifest.Entry(size, modified, hashes[0]));
+                        continue;
+                    }
+                    if (old != null && old.hash.equals(hashes[1])) from = old.size;
+                    copy(file, from, size, snapshot, readBuffer);
+                }
+                next.entries.put(file.getName(), new BackupManifest.Entry(size, modified, hashes[0]));
+                if (from > 0) info.append("append\t").append(file.getName()).append('\t').append(from).append('\n');
+                names.add(file.getName());
+                snapshots.add(snapshot);
+                total += size - from;
+            }
+        }
+        if (!full) {
+            for (String deleted : manifest.entries.keySet()) {
+                if (!next.entries.containsKey(deleted)) info.append("delete\t").append(deleted).append('\n');
+            }
+            if (names.isEmpty() && info.indexOf("delete\t") < 0) {  //nothing changed, only update mtimes
+                next.save(context);
+                return true;
+            }
+        }
+
+        File zipFile = full ? base : new File(dir, name + "-" + timestamp + ".zip");
+        File tmp = new File(dir, zipFile.getName() + ".tmp");
+        long done = 0;
+        boolean complete = false;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(fos, readBuffer.length))) {
+            zipOutputStream.putNextEntry(new ZipEntry(INFO_ENTRY));
+            zipOutputStream.write(info.toString().getBytes(StandardCharsets.UTF_8));
+            zipOutputStream.closeEntry();
+            for (int k = 0; k < names.size(); k++) {
+                if (cancel.get()) break;
+                zipOutputStream.putNextEntry(new ZipEntry(ENTRY_PREFIX + names.get(k)));
+                done = copy(snapshots.get(k), zipOutputStream, readBuffer, done, total, progress);
+                zipOutputStream.closeEntry();
+            }
+            zipOutputStream.finish();
+            zipOutputStream.flush();
+            fos.getFD().sync();
+            complete = !cancel.get();
+        } finally {
+            if (!complete) tmp.delete();
+        }
+        if (!complete) return false;
+        if (!tmp.renameTo(zipFile)) throw new IOException("Cannot replace " + zipFile);
+        next.lastTimestamp = timestamp;
+        if (full) {  //deltas of the replaced full archive cannot be restored any more
+            next.baseSize = base.length();
+            for (File delta : deltas(dir, name)) delta.delete();
+        }
+        next.save(context);
+        return true;
+    }
+
+    /**
+     * @return the delta archives name-timestamp.zip in dir
+     */
+    public static List<File> deltas(File dir, String name) {
+        List<File> deltas = new ArrayList<>();
+        File[] all = dir.listFiles();
+        if (all == null) return deltas;
+        for (File file : all) {
+            if (file.getName().matches(Pattern.quote(name) + "-\\d+\\.zip")) deltas.add(file);
+        }
+        return deltas;
+    }
+
+    /**
+     * Copies the bytes from, to of a file into the snapshot file
+     */
+    private static void copy(File file, long from, long to, File snapshot, byte[] readBuffer) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileOutputStream out = new FileOutputStream(snapshot)) {
+            in.seek(from);
+            while (from < to) {
+                int readLen = in.read(readBuffer, 0, (int) Math.min(readBuffer.length, to - from));
+                if (readLen < 0) throw new IOException("File shrank during backup: " + file);
+                out.write(readBuffer, 0, readLen);
+                from += readLen;
+            }
+        }
+    }
+
+    private static long copy(File snapshot, OutputStream out, byte[] readBuffer, long done, long total, ProgressTask.Progress progress) throws IOException {
+        try (FileInputStream in = new FileInputStream(snapshot)) {
+            int readLen;
+            while ((readLen = in.read(readBuffer)) > 0) {
+                out.write(readBuffer, 0, readLen);
+                done += readLen;
+                progress.onProgress(done, total);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Contents of INFO_ENTRY, lines:
+     *   timestamp TAB time of the backup, base TAB time of the full archive the backup builds on
+     *   previous TAB time of the archive the delta follows, missing in full archives
+     *   append TAB name TAB offset: the entry of this file continues it at offset
+     *   delete TAB name: the file was deleted since the previous backup
+     * Archives of earlier versions have no INFO_ENTRY and are full archives with timestamp 0.
+     * Deltas of earlier versions have no previous line, their order cannot be checked.
+     */
+    static class ArchiveInfo {
+        final Uri uri;
+        long timestamp = 0;
+        long base = 0;
+        long previous = 0;  // 0 if unknown
+        final Map<String, Long> appends = new HashMap<>();
+        final List<String> deletes = new ArrayList<>();
+        long length = 0;  // size of the archive, 0 if unknown
+
+        ArchiveInfo(Context context, Uri uri) throws IOException {
+            this.uri = uri;
+            try (AssetFileDescriptor descriptor = context.getContentResolver().openAssetFileDescriptor(uri, "r")) {
+                if (descriptor != null) length = Math.max(0, descriptor.getLength());
+            }
+            try (ZipInputStream zipInputStream = new ZipInputStream(context.getContentResolver().openInputStream(uri))) {
+                ZipEntry zipEntry = zipInputStream.getNextEntry();
+                if (zipEntry == null || !zipEntry.getName().equals(INFO_ENTRY)) return;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(zipInputStream, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    try {
+                        if (fields[0].equals("timestamp")) timestamp = Long.parseLong(fields[1]);
+                        else if (fields[0].equals("base")) base = Long.parseLong(fields[1]);
+                        else if (fields[0].equals("previous")) previous = Long.parseLong(fields[1]);
+                        else if (fields[0].equals("append")) appends.put(ENTRY_PREFIX + fields[1], Long.parseLong(fields[2]));
+                        else if (fields[0].equals("delete")) deletes.add(ENTRY_PREFIX + fields[1]);
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        throw new IOException("Invalid backup info in " + uri);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the newest full archive among zipFiles followed by its deltas in order of time,
+     * called off the UI thread. Archives belonging to other full archives are ignored. If a delta
+     * between the full archive and the newest selected delta is missing, nothing is restored.
+     * The archives are extracted into a staging directory next to the files directory. Entries
+     * must lie below files/ and the restored results log and calibration must pass their checksums.
+     * Only then the staging directory replaces the files directory, so a failed or cancelled
+     * restore leaves the current data unchanged.
+     * @return false if cancelled
+     */
+    public static boolean zipExtract(Context context, List<Uri> zipFiles, AtomicBoolean cancel, ProgressTask.Progress progress) throws IOException {
+        List<ArchiveInfo> archives = new ArrayList<>();
+        ArchiveInfo base = null;
+        for (Uri zipFile : zipFiles) {
+            ArchiveInfo archive = new ArchiveInfo(context, zipFile);
+            archives.add(archive);
+            if (archive.timestamp == archive.base && (base == null || archive.timestamp > base.timestamp)) base = archive;
+        }
+        if (base == null) throw new IOException("No full backup selected");
+        List<ArchiveInfo> replay = new ArrayList<>();
+        long total = 0;
+        for (ArchiveInfo archive : archives) {
+            if (archive == base || archive.base == base.timestamp && archive.timestamp > base.timestamp) {
+                replay.add(archive);
+                total += archive.length;
+            }
+        }
+        Collections.sort(replay, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+        for (int k = 1; k < replay.size(); k++) {  //each delta must follow the archive before it
+            ArchiveInfo delta = replay.get(k);
+            if (delta.previous != 0 && delta.previous != replay.get(k - 1).timestamp) {
+                throw new IOException("Backup from " + new Date(delta.previous) + " before " + delta.uri + " is missing");
+            }
+        }
+        long size = total;
+
+        File files = context.getFilesDir();
+        File staging = new File(files.getParentFile(), STAGING_DIR);
+        File old = new File(files.getParentFile(), OLD_DIR);
+        deleteRecursively(staging);
+        if (!staging.mkdirs()) throw new IOException("Cannot create " + staging);
+        String stagingPath = staging.getCanonicalPath() + File.separator;
+        byte[] readBuffer = new byte[65536];
+        long[] done = {0};
+        try {
+            for (ArchiveInfo archive : replay) {
+                InputStream in = new BufferedInputStream(context.getContentResolver().openInputStream(archive.uri), readBuffer.length);
+                try (ZipInputStream zipInputStream = new ZipInputStream(new FilterInputStream(in) {  //counts compressed bytes for the progress
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int readLen = super.read(b, off, len);
+                        if (readLen > 0) progress.onProgress(done[0] += readLen, size);
+                        return readLen;
+                    }
+                })) {
+                    ZipEntry zipEntry;
                     while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                        File extractedFile = new File(targetDir ,zipEntry.getName());
-                        try (OutputStream outputStream = new FileOutputStream(extractedFile)) {
+                        if (cancel.get()) return false;
+                        if (zipEntry.isDirectory() || zipEntry.getName().equals(INFO_ENTRY)) continue;
+                        File extractedFile = stagedFile(staging, stagingPath, zipEntry.getName());
+                        Long offset = archive.appends.get(zipEntry.getName());
+                        if (offset != null && extractedFile.length() < offset) throw new IOException("Backup " + archive.uri + " does not continue " + zipEntry.getName());
+                        File parent = extractedFile.getParentFile();
+                        if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+                        try (FileOutputStream outputStream = new FileOutputStream(extractedFile, offset != null)) {
+                            if (offset != null) outputStream.getChannel().truncate(offset);
+                            int readLen;
                             while ((readLen = zipInputStream.read(readBuffer)) != -1) {
                                 outputStream.write(readBuffer, 0, readLen);
                             }
+                            outputStream.getFD().sync();
                         }
                     }
                 }
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+                for (String deleted : archive.deletes) stagedFile(staging, stagingPath, deleted).delete();
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            if (cancel.get()) return false;
+
+            File log = new File(staging, ResultsLog.FILE_NAME);
+            if (log.exists()) {
+                int corrupt = ResultsLog.verify(log);
+                if (corrupt > 0) throw new IOException(corrupt + " corrupt tests in backup");
+            }
+            if (new File(staging, FileOperations.CALIBRATION_FILE).exists() && new FileOperations().loadCalibration(staging) == null) {
+                throw new IOException("Corrupt calibration in backup");
+            }
+
+            ResultsLog.reset();  //nothing may use the current files during the swap
+            CalibrationHistory.reset();
+            ProfileStore.reset();
+            deleteRecursively(old);
+            if (!files.renameTo(old)) throw new IOException("Cannot move " + files);
+            if (!staging.renameTo(files)) {
+                old.renameTo(files);
+                throw new IOException("Cannot move " + staging);
+            }
+            deleteRecursively(old);
+        } finally {
+            deleteRecursively(staging);
+        }
+        BackupManifest.delete(context);  //the next backup is a full one of the restored files
+        CalibrationRepository.invalidate();
+        return true;
+    }
+
+    /**
+     * Completes or rolls back a restore interrupted during the swap of the files directory,
+     * called by AudiometryApplication before the files are used
+     */
+    public static void recoverRestore(Context context) {
+        File files = context.getFilesDir();
+        File staging = new File(files.getParentFile(), STAGING_DIR);
+        File old = new File(files.getParentFile(), OLD_DIR);
+        if (old.exists()) {
+            if (staging.exists()) {  //staging was not moved in, files is empty
+                deleteRecursively(files);
+                old.renameTo(files);
+            } else {
+                deleteRecursively(old);
+            }
+        }
+        deleteRecursively(staging);
+    }
+
+    /**
+     * @return the file of an entry below files/ in the staging directory
+     * @throws IOException if the entry points elsewhere (zip slip)
+     */
+    private static File stagedFile(File staging, String stagingPath, String entryName) throws IOException {
+        if (!entryName.startsWith(ENTRY_PREFIX)) throw new IOException("Invalid entry in backup: " + entryName);
+        File file = new File(staging, entryName.substring(ENTRY_PREFIX.length()));
+        if (!file.getCanonicalPath().startsWith(stagingPath)) throw new IOException("Invalid entry in backup: " + entryName);
+        return file;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
         }
+        file.delete();
     }
 }
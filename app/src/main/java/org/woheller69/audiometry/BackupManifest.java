@@ -0,0 +1,133 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * State of the files directory at the last backup, so that the next backup only archives what changed.
+ * Kept in the no-backup directory, it is neither backed up nor restored. Lines:
+ *   base TAB timestamp of the full archive TAB its size in bytes
+ *   last TAB timestamp of the last archive written, full or delta
+ *   name TAB size TAB mtime TAB SHA-256 of the content, one line per file
+ * Files with the size and mtime of the manifest are not read again.
+ */
+public class BackupManifest {
+    public static final String FILE_NAME = "BackupManifest";
+
+    long baseTimestamp = 0;  // 0: no full archive yet
+    long baseSize = 0;
+    long lastTimestamp = 0;  // 0: written before deltas were linked, the next backup is full
+    final Map<String, Entry> entries = new TreeMap<>();
+
+    static class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @return the manifest of the last backup, empty if there is none
+     */
+    static BackupManifest load(Context context) {
+        BackupManifest manifest = new BackupManifest();
+        File file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        if (!file.exists()) return manifest;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3 && fields[0].equals("base")) {
+                    manifest.baseTimestamp = Long.parseLong(fields[1]);
+                    manifest.baseSize = Long.parseLong(fields[2]);
+                } else if (fields.length == 2 && fields[0].equals("last")) {
+                    manifest.lastTimestamp = Long.parseLong(fields[1]);
+                } else if (fields.length == 4) {
+                    manifest.entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {  //start over with a full backup
+            System.out.println(e.toString());
+            return new BackupManifest();
+        }
+        return manifest;
+    }
+
+    void save(Context context) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("base\t").append(baseTimestamp).append('\t').append(baseSize).append('\n');
+        text.append("last\t").append(lastTimestamp).append('\n');
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry e = entry.getValue();
+            text.append(entry.getKey()).append('\t').append(e.size).append('\t').append(e.modified).append('\t').append(e.hash).append('\n');
+        }
+        FileOperations.writeAtomic(context.getNoBackupFilesDir(), FILE_NAME, text.toString().getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    /**
+     * Forgets the last backup, the next one is a full backup
+     */
+    static void delete(Context context) {
+        new File(context.getNoBackupFilesDir(), FILE_NAME).delete();
+    }
+
+    /**
+     * Hashes the first size bytes of a file in one pass
+     * @param prefix - length of a prefix whose hash is also returned, -1 for none
+     * @return hash of the first size bytes and of the prefix (null without prefix)
+     */
+    static String[] hash(File file, long size, long prefix) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        String prefixHash = null;
+        byte[] buffer = new byte[65536];
+        long done = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            while (done < size) {
+                if (done == prefix) prefixHash = hex(clone(digest).digest());
+                int length = (int) Math.min(buffer.length, size - done);
+                if (prefix > done) length = (int) Math.min(length, prefix - done);  //stop exactly at the prefix
+                length = in.read(buffer, 0, length);
+                if (length < 0) throw new IOException("File shrank while hashing: " + file);
+                digest.update(buffer, 0, length);
+                done += length;
+            }
+        }
+        if (done == prefix) prefixHash = hex(clone(digest).digest());
+        return new String[]{hex(digest.digest()), prefixHash};
+    }
+
+    private static MessageDigest clone(MessageDigest digest) throws IOException {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) text.append(String.format("%02x", b));
+        return text.toString();
+    }
+}
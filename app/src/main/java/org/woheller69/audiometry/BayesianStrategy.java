@@ -0,0 +1,109 @@
+package org.woheller69.audiometry;
+
+/**
+ * QUEST-like Bayesian threshold estimation.
+ * Keeps a posterior over candidate thresholds on a 1 dB grid and presents the next tone at
+ * the posterior mean. Each response multiplies the posterior with the likelihood of a logistic
+ * psychometric function that includes false alarms (guess rate) and misses (lapse rate).
+ * Stops when the posterior standard deviation falls below TARGET_SD.
+ */
+public class BayesianStrategy implements ThresholdStrategy {
+    private static final double GRID_STEP = 1.0;
+    private static final double PRIOR_SD = 20.0;
+    private static final double SLOPE_DB = 2.0;      // spread of the logistic psychometric function
+    private static final double GUESS_RATE = 0.03;   // false alarms, e.g. taps during the gap
+    private static final double LAPSE_RATE = 0.03;   // misses well above threshold
+    private static final double TARGET_SD = 2.5;
+    private static final int MIN_PRESENTATIONS = 4;
+    static final int MAX_PRESENTATIONS = 20;
+
+    private final double[] candidates;
+    private final double[] logPosterior;
+    private final double[] posterior;
+    private double mean;
+    private double sd;
+    private double lastLevel;
+    private int presentations = 0;
+    private boolean finished = false;
+
+    /**
+     * @param expectedThreshold - center of the gaussian prior in dB
+     */
+    public BayesianStrategy(double expectedThreshold) {
+        int n = (int) Math.floor((MAX_LEVEL - MIN_LEVEL) / GRID_STEP) + 1;
+        candidates = new double[n];
+        logPosterior = new double[n];
+        posterior = new double[n];
+        for (int k = 0; k < n; k++) {
+            candidates[k] = MIN_LEVEL + k * GRID_STEP;
+            double z = (candidates[k] - expectedThreshold) / PRIOR_SD;
+            logPosterior[k] = -0.5 * z * z;
+        }
+        updateMoments();
+    }
+
+    /**
+     * Probability of a response to a tone at level given the threshold
+     */
+    static double pHeard(double level, double threshold) {
+        return GUESS_RATE + (1 - GUESS_RATE - LAPSE_RATE) / (1 + Math.exp(-(level - threshold) / SLOPE_DB));
+    }
+
+    @Override
+    public double nextLevel() {
+        lastLevel = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, Math.round(mean / GRID_STEP) * GRID_STEP));
+        return lastLevel;
+    }
+
+    @Override
+    public void onResponse(boolean heard) {
+        if (finished) return;
+        presentations++;
+        for (int k = 0; k < candidates.length; k++) {
+            double p = pHeard(lastLevel, candidates[k]);
+            logPosterior[k] += Math.log(heard ? p : 1 - p);
+        }
+        updateMoments();
+        if ((presentations >= MIN_PRESENTATIONS && sd < TARGET_SD) || presentations >= MAX_PRESENTATIONS) finished = true;
+    }
+
+    private void updateMoments() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double l : logPosterior) max = Math.max(max, l);
+        double sum = 0, sumX = 0;
+        for (int k = 0; k < candidates.length; k++) {
+            posterior[k] = Math.exp(logPosterior[k] - max);
+            sum += posterior[k];
+            sumX += posterior[k] * candidates[k];
+        }
+        mean = sumX / sum;
+        double var = 0;
+        for (int k = 0; k < candidates.length; k++) {
+            double d = candidates[k] - mean;
+            var += posterior[k] * d * d;
+        }
+        sd = Math.sqrt(var / sum);
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public double getThreshold() {
+        return mean;
+    }
+
+    @Override
+    public int getPresentations() {
+        return presentations;
+    }
+
+    /**
+     * @return current standard deviation of the threshold estimate in dB
+     */
+    public double getStandardDeviation() {
+        return sd;
+    }
+}
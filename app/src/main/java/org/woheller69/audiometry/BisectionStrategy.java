@@ -0,0 +1,83 @@
+package org.woheller69.audiometry;
+
+/**
+ * The original search of PerformTest: bisection in dB between the lowest level heard and the
+ * highest level not heard, with up to three presentations per level (two out of three heard).
+ * Before the first miss the level is lowered in 5 dB steps.
+ */
+public class BisectionStrategy implements ThresholdStrategy {
+    private static final double STEP_DB = 5.0;
+    private static final double PRECISION_DB = 3.0;
+    static final int MAX_PRESENTATIONS = 40;
+
+    private double maxLevel = MAX_LEVEL;   // lowest level heard so far
+    private double minLevel;               // highest level not heard so far, only valid if missed
+    private boolean missed = false;
+    private double threshold = MAX_LEVEL;
+    private double level;
+    private int hits = 0;
+    private int trials = 0;
+    private int presentations = 0;
+    private boolean finished = false;
+
+    public BisectionStrategy() {
+        level = pickLevel();
+    }
+
+    private double pickLevel() {
+        double next;
+        if (missed) {  //at least one tone not heard
+            double middle = (maxLevel + minLevel) / 2.0;
+            next = Math.round(middle / STEP_DB) * STEP_DB;
+            if (next >= maxLevel || next <= minLevel) next = middle;  // rounding must not stall the search
+        } else {
+            next = maxLevel - STEP_DB;
+        }
+        return Math.max(MIN_LEVEL, next);
+    }
+
+    @Override
+    public double nextLevel() {
+        return level;
+    }
+
+    @Override
+    public void onResponse(boolean heard) {
+        if (finished) return;
+        presentations++;
+        trials++;
+        if (heard) hits++;
+
+        if (hits >= 2 || (trials == 2 && hits == 0) || trials == 3) {
+            if (hits >= 2) {
+                threshold = level;
+                maxLevel = level;
+                if (level <= MIN_LEVEL) finished = true;
+            } else {
+                if (missed) minLevel = level;
+                else minLevel = level - PRECISION_DB;  //if not heard for first time test again 3 dB below if a higher level is heard
+                missed = true;
+            }
+            hits = 0;
+            trials = 0;
+            if (missed && maxLevel - minLevel < PRECISION_DB) finished = true;
+            else level = pickLevel();
+        }
+        if (presentations >= MAX_PRESENTATIONS) finished = true;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public double getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public int getPresentations() {
+        return presentations;
+    }
+}
@@ -0,0 +1,199 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * All calibration runs in an append-only file. Each record (big-endian):
+ *   int magic "hCLR", long timestamp in ms, short number of values n, double[n] thresholds in dB,
+ *   int CRC32 of the preceding bytes
+ * Reading stops at the first record that fails the checksum, i.e. a torn last append, which is cut off.
+ * The runs are kept as one sorted array per frequency, so the effective calibration is computed
+ * without reading the file again. Adding a run inserts into each array, which shifts up to all
+ * runs, i.e. O(runs) per frequency; with the few runs a user makes this is a small copy.
+ * Computing the effective calibration allocates nothing but its result.
+ */
+public class CalibrationHistory {
+    public static final String FILE_NAME = "CalibrationHistory";
+    public static final String MEAN = "mean";
+    public static final String MEDIAN = "median";
+    public static final String TRIMMED_MEAN = "trimmed";
+    public static final String DEFAULT = MEDIAN;
+    private static final int MAGIC = 0x68434C52;  // "hCLR"
+    private static final int RECORD_HEADER_SIZE = 14;
+    private static final double OUTLIER_MADS = 3.0;  // runs further from the median are rejected
+    private static final double MAD_SCALE = 1.4826;  // MAD to standard deviation for normal data
+    private static final double MIN_SPREAD_DB = 1.0; // runs within this spread are never rejected
+    private static final double TRIM = 0.2;          // fraction dropped at each end by the trimmed mean
+
+    private static CalibrationHistory instance;
+
+    private final File file;
+    private final double[][] sorted = new double[testFrequencies.length][];
+    private int runs = 0;
+
+    CalibrationHistory(File file) {
+        this.file = file;
+        for (int i = 0; i < sorted.length; i++) sorted[i] = new double[8];
+        if (!file.exists()) return;
+        ByteBuffer buffer;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+            return;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int n = buffer.getShort(start + 12);
+            int length = RECORD_HEADER_SIZE + 8 * n;
+            if (buffer.getInt(start) != MAGIC || n <= 0 || buffer.remaining() < length + 4) break;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), start, length);
+            if (buffer.getInt(start + length) != (int) crc.getValue()) break;
+            double[] values = new double[n];
+            buffer.position(start + RECORD_HEADER_SIZE);
+            buffer.asDoubleBuffer().get(values);
+            insert(values);
+            buffer.position(start + length + 4);
+        }
+        if (buffer.hasRemaining()) {  //cut off a torn append so that new runs follow the last valid one
+            try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                fos.getChannel().truncate(buffer.position());
+                fos.getFD().sync();
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the history of this app. Calibrations stored before the history existed are
+     * added as one run per counted calibration with the stored average.
+     */
+    public static synchronized CalibrationHistory get(Context context) {
+        if (instance == null) {
+            instance = new CalibrationHistory(new File(context.getFilesDir(), FILE_NAME));
+            if (instance.runs == 0) {
+                double[] legacy = new FileOperations().loadCalibration(context);
+                if (legacy != null) {
+                    double[] values = Arrays.copyOf(legacy, testFrequencies.length);
+                    try {
+                        for (int k = 0; k < (int) legacy[testFrequencies.length]; k++) instance.append(0, values);
+                    } catch (IOException e) {
+                        System.out.println(e.toString());
+                    }
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the loaded history, e.g. after its file was deleted or restored
+     */
+    public static synchronized void reset() {
+        instance = null;
+    }
+
+    public synchronized int getRuns() {
+        return runs;
+    }
+
+    /**
+     * Stores one calibration run, thresholds for PerformTest.testFrequencies in dB
+     */
+    public synchronized void append(long timestamp, double[] values) throws IOException {
+        int n = testFrequencies.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 8 * n + 4);
+        buffer.putInt(MAGIC).putLong(timestamp).putShort((short) n);
+        buffer.asDoubleBuffer().put(values, 0, n);
+        buffer.position(buffer.position() + 8 * n);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.write(buffer.array());
+            fos.getFD().sync();
+        }
+        insert(values);
+    }
+
+    private void insert(double[] values) {
+        for (int i = 0; i < sorted.length; i++) {
+            if (runs == sorted[i].length) sorted[i] = Arrays.copyOf(sorted[i], 2 * runs);
+            double value = i < values.length ? values[i] : Double.NaN;
+            int position = Arrays.binarySearch(sorted[i], 0, runs, value);
+            if (position < 0) position = -position - 1;
+            System.arraycopy(sorted[i], position, sorted[i], position + 1, runs - position);
+            sorted[i][position] = value;
+        }
+        runs++;
+    }
+
+    /**
+     * @param statistic - MEAN, MEDIAN or TRIMMED_MEAN. Runs further than OUTLIER_MADS scaled median
+     *                  absolute deviations from the median are rejected before the mean is taken.
+     * @return calibration in the layout of FileOperations.readCalibration, the last field is the number of runs
+     */
+    public synchronized double[] effective(String statistic) {
+        double[] calibration = new double[testFrequencies.length + 1];
+        for (int i = 0; i < sorted.length; i++) calibration[i] = aggregate(sorted[i], runs, statistic);
+        calibration[testFrequencies.length] = runs;
+        return calibration;
+    }
+
+    static double aggregate(double[] x, int count, String statistic) {
+        if (count == 0) return 0;
+        double median = median(x, 0, count);
+        if (statistic.equals(MEDIAN)) return median;
+
+        double limit = OUTLIER_MADS * Math.max(MAD_SCALE * mad(x, count, median), MIN_SPREAD_DB);
+        int from = 0, to = count;
+        while (x[from] < median - limit) from++;
+        while (x[to - 1] > median + limit) to--;
+        if (statistic.equals(TRIMMED_MEAN)) {
+            int trim = (int) Math.floor(TRIM * (to - from));
+            from += trim;
+            to -= trim;
+        }
+        double sum = 0;
+        for (int k = from; k < to; k++) sum += x[k];
+        return sum / (to - from);
+    }
+
+    private static double median(double[] x, int from, int to) {
+        int count = to - from;
+        int middle = from + count / 2;
+        return count % 2 == 1 ? x[middle] : (x[middle - 1] + x[middle]) / 2;
+    }
+
+    /**
+     * Median absolute deviation of sorted values. The deviations grow outwards from the median,
+     * so merging both sides yields them in ascending order, up to the middle one in linear time.
+     */
+    private static double mad(double[] x, int count, double median) {
+        int left = (count - 1) / 2;
+        int right = left + 1;
+        double previous = 0, deviation = 0;
+        for (int k = 0; k <= count / 2; k++) {
+            previous = deviation;
+            if (right >= count || (left >= 0 && median - x[left] <= x[right] - median)) deviation = median - x[left--];
+            else deviation = x[right++] - median;
+        }
+        return count % 2 == 1 ? deviation : (previous + deviation) / 2;
+    }
+}
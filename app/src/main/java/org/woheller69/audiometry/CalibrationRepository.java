@@ -0,0 +1,91 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Process-wide cache of the calibration. It is read from storage on first use and served as an
+ * immutable snapshot until it is invalidated by writing, deleting or restoring the calibration.
+ * Listeners are notified on the main thread after each invalidation.
+ */
+public class CalibrationRepository {
+
+    public interface Listener {
+        void onCalibrationChanged();
+    }
+
+    /**
+     * Calibration at one point in time, values in dB for PerformTest.testFrequencies
+     */
+    public static class Snapshot {
+        private final double[] values;  //last field is the number of calibrations
+        public final boolean calibrated;
+        private final int version;
+
+        Snapshot(double[] values, boolean calibrated) {
+            this.values = values;
+            this.calibrated = calibrated;
+            this.version = Arrays.hashCode(values);
+        }
+
+        /**
+         * @return a hash of the values, the same across restarts and different after a change of the calibration
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public double get(int i) {
+            return values[i];
+        }
+
+        public int getNumCalibrations() {
+            return (int) values[testFrequencies.length];
+        }
+
+        /**
+         * @return a copy in the layout of FileOperations.readCalibration
+         */
+        public double[] toArray() {
+            return values.clone();
+        }
+    }
+
+    private static Snapshot snapshot;
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public static synchronized Snapshot get(Context context) {
+        if (snapshot == null) {
+            double[] values = new FileOperations().loadCalibration(context);
+            snapshot = values != null ? new Snapshot(values, true) : new Snapshot(new double[testFrequencies.length + 1], false);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the cached calibration, it is read again on next use
+     */
+    public static void invalidate() {
+        synchronized (CalibrationRepository.class) {
+            snapshot = null;
+        }
+        if (listeners.isEmpty()) return;
+        new Handler(Looper.getMainLooper()).post(() -> {
+            for (Listener listener : listeners) listener.onCalibrationChanged();
+        });
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
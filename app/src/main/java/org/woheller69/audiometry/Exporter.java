@@ -0,0 +1,197 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Writes the tests of all users into one file for analysis, streaming one test at a time:
+ *   CSV: one row per test, ear and frequency with the columns of CSV_HEADER
+ *   JSON Lines: one object per test with arrays per ear
+ *   binary: int magic "hEXP", short version, short reserved, then per test an int length and its TestResult record
+ * Thresholds are given as measured (dB re full scale) and in dB HL with the current calibration,
+ * empty (CSV) or null (JSON) where a frequency was not tested.
+ */
+public class Exporter {
+    public static final String CSV = "csv";
+    public static final String JSONL = "jsonl";
+    public static final String BINARY = "bin";
+    public static final String DIR = "export";  // below the cache directory, shared through the FileProvider
+    static final String CSV_HEADER = "user,profile,timestamp,date,ear,frequency,threshold_db,threshold_dbhl,presentations,flags";
+    private static final int MAGIC = 0x68455850;  // "hEXP"
+    private static final short VERSION = 1;
+    private static final String[] EARS = {"right", "left"};
+
+    private final ResultsLog log;
+    private final ProfileStore profiles;
+    private final CalibrationRepository.Snapshot calibration;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+
+    public Exporter(ResultsLog log, ProfileStore profiles, CalibrationRepository.Snapshot calibration) {
+        this.log = log;
+        this.profiles = profiles;
+        this.calibration = calibration;
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @return the file in the cache directory that export() writes for a format
+     */
+    public static File file(Context context, String format) {
+        return new File(new File(context.getCacheDir(), DIR), context.getString(R.string.app_name) + "." + format);
+    }
+
+    /**
+     * Exports all tests, called off the UI thread
+     * @return false if cancelled, the file is deleted then
+     */
+    public boolean export(File file, String format, AtomicBoolean cancel, ProgressTask.Progress progress) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        int total = 0;
+        int[] users = log.users();
+        for (int user : users) total += log.count(user);
+        int done = 0;
+        boolean complete = false;
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            BufferedOutputStream out = new BufferedOutputStream(fos, 65536);
+            DataOutputStream data = format.equals(BINARY) ? new DataOutputStream(out) : null;
+            Writer writer = data == null ? new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536) : null;
+            if (data != null) {
+                data.writeInt(MAGIC);
+                data.writeShort(VERSION);
+                data.writeShort(0);
+            }
+            if (format.equals(CSV)) writer.write(CSV_HEADER + "\n");
+            for (int user : users) {
+                ProfileStore.Profile profile = profiles.getProfile(user);
+                String name = profile != null ? profile.name : "";
+                long[] timestamps = log.timestamps(user);
+                for (int k = timestamps.length - 1; k >= 0; k--) {  //oldest first
+                    if (cancel.get()) return false;
+                    TestResult result = log.read(user, timestamps[k]);
+                    if (result != null) {
+                        if (format.equals(CSV)) writeCsv(writer, result, name);
+                        else if (format.equals(JSONL)) writeJson(writer, result, name);
+                        else {
+                            byte[] record = result.encode();
+                            data.writeInt(record.length);
+                            data.write(record);
+                        }
+                    }
+                    progress.onProgress(++done, total);
+                }
+            }
+            if (writer != null) writer.flush();
+            else data.flush();
+            complete = true;
+        } finally {
+            if (!complete) file.delete();
+        }
+        return true;
+    }
+
+    void writeCsv(Writer writer, TestResult result, String profile) throws IOException {
+        String prefix = result.user + "," + csv(profile) + "," + result.timestamp + "," + dateFormat.format(new Date(result.timestamp)) + ",";
+        for (int s = 0; s < 2; s++) {
+            if (!result.hasEar(s)) continue;
+            for (int i = 0; i < result.frequencies.length; i++) {
+                double threshold = result.thresholds[s][i];
+                writer.write(prefix);
+                writer.write(EARS[s]);
+                writer.write(',');
+                writer.write(Integer.toString(result.frequencies[i]));
+                writer.write(',');
+                writer.write(Double.isNaN(threshold) ? "" : Double.toString(threshold));
+                writer.write(',');
+                double hl = hearingLevel(result.frequencies[i], threshold);
+                writer.write(Double.isNaN(hl) ? "" : Double.toString(hl));
+                writer.write(',');
+                writer.write(Integer.toString(result.presentations[s][i]));
+                writer.write(',');
+                writer.write(Integer.toString(result.flags[s][i]));
+                writer.write('\n');
+            }
+        }
+    }
+
+    void writeJson(Writer writer, TestResult result, String profile) throws IOException {
+        writer.write("{\"user\":" + result.user + ",\"profile\":" + json(profile) + ",\"timestamp\":" + result.timestamp
+                + ",\"date\":\"" + dateFormat.format(new Date(result.timestamp)) + "\",\"frequencies\":[");
+        for (int i = 0; i < result.frequencies.length; i++) {
+            if (i > 0) writer.write(',');
+            writer.write(Integer.toString(result.frequencies[i]));
+        }
+        writer.write(']');
+        for (int s = 0; s < 2; s++) {
+            if (!result.hasEar(s)) continue;
+            writer.write(",\"" + EARS[s] + "\":{\"threshold_db\":[");
+            for (int i = 0; i < result.frequencies.length; i++) {
+                if (i > 0) writer.write(',');
+                writer.write(number(result.thresholds[s][i]));
+            }
+            writer.write("],\"threshold_dbhl\":[");
+            for (int i = 0; i < result.frequencies.length; i++) {
+                if (i > 0) writer.write(',');
+                writer.write(number(hearingLevel(result.frequencies[i], result.thresholds[s][i])));
+            }
+            writer.write("],\"presentations\":[");
+            for (int i = 0; i < result.frequencies.length; i++) {
+                if (i > 0) writer.write(',');
+                writer.write(Integer.toString(result.presentations[s][i]));
+            }
+            writer.write("],\"flags\":[");
+            for (int i = 0; i < result.frequencies.length; i++) {
+                if (i > 0) writer.write(',');
+                writer.write(Integer.toString(result.flags[s][i]));
+            }
+            writer.write("]}");
+        }
+        writer.write("}\n");
+    }
+
+    /**
+     * @return threshold in dB HL, NaN if the frequency is not calibrated
+     */
+    private double hearingLevel(int frequency, double threshold) {
+        for (int i = 0; i < testFrequencies.length; i++) {
+            if (testFrequencies[i] == frequency) return threshold - calibration.get(i);
+        }
+        return Double.NaN;
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+    }
+
+    private static String csv(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) return text;
+        return "\"" + text.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int k = 0; k < text.length(); k++) {
+            char c = text.charAt(k);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
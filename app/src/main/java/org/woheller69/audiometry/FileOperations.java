@@ -2,31 +2,35 @@ package org.woheller69.audiometry;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
 
 import androidx.preference.PreferenceManager;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.List;
+import java.util.zip.CRC32;
 
 import static org.woheller69.audiometry.PerformTest.testFrequencies;
 
 public class FileOperations {
+    static final String CALIBRATION_FILE = "CalibrationPreferences";
+    static final int CALIBRATION_GENERATIONS = 3;
+    private static final int CALIBRATION_MAGIC = 0x6843414C;  // "hCAL"
+    private static final short CALIBRATION_VERSION = 1;
+    private static final int CALIBRATION_HEADER_SIZE = 8;
 
     public static boolean isCalibrated(Context context){
-        List<String> list = new ArrayList<String>(Arrays.asList(context.fileList()));
-        return list.contains("CalibrationPreferences");
+        return CalibrationRepository.get(context).calibrated;
     }
 
     public double read0dBSPL(Context context){  //0dB SPL equals hearing threshold at 1000Hz
         for (int i=0; i<testFrequencies.length;i++){
-            if(testFrequencies[i]==1000) return readCalibration(context)[i];
+            if(testFrequencies[i]==1000) return CalibrationRepository.get(context).get(i);
         }
         return 0;
     }
@@ -53,156 +57,213 @@ public class FileOperations {
     }
 
     public static void deleteAllFiles(Context context){
+        ResultsLog.reset();
+        CalibrationHistory.reset();
+        ProfileStore.reset();
         File file = new File(context.getFilesDir()+"/");
         for(File tempFile : file.listFiles()) {
             tempFile.delete();
         }
+        CalibrationRepository.invalidate();
     }
 
     public void deleteCalibration(Context context){
-        File file = new File(context.getFilesDir()+"/" + "CalibrationPreferences");
-        file.delete();
+        File dir = context.getFilesDir();
+        new File(dir, CalibrationHistory.FILE_NAME).delete();
+        new File(dir, CALIBRATION_FILE).delete();
+        for (int g = 1; g <= CALIBRATION_GENERATIONS; g++) new File(dir, CALIBRATION_FILE + "." + g).delete();
+        CalibrationHistory.reset();
+        CalibrationRepository.invalidate();
     }
 
+    /**
+     * Adds a calibration run to the history and stores the resulting calibration
+     * @param calibrationArray - thresholds of the run for testFrequencies
+     */
     public void writeCalibration(double[] calibrationArray, Context context) {
-        double numCalibrations=0;
-        double[] calibrationArrayOld = new double[testFrequencies.length+1];
-        if (isCalibrated(context)) {
-            calibrationArrayOld=readCalibration(context);
-            numCalibrations = calibrationArrayOld[testFrequencies.length];
+        CalibrationHistory history = CalibrationHistory.get(context);
+        try (Spans.Span span = Spans.begin("CalibrationHistory.append")) {
+            history.append(System.currentTimeMillis(), calibrationArray);
+        } catch (IOException e) {System.out.println (e.toString());
         }
-        if (numCalibrations>0){
-            for(int i=0;i<testFrequencies.length;i++){
-                calibrationArray[i]=(calibrationArray[i]+calibrationArrayOld[i]*numCalibrations)/(numCalibrations+1);
-            }
+        updateCalibration(context);
+    }
+
+    /**
+     * Stores the calibration computed from the history with the statistic chosen in the preferences
+     */
+    public void updateCalibration(Context context) {
+        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
+        String statistic = prefManager.getString("calibrationStatistic", CalibrationHistory.DEFAULT);
+        double[] calibrationArray = CalibrationHistory.get(context).effective(statistic);
+
+        ByteBuffer buffer = ByteBuffer.allocate(CALIBRATION_HEADER_SIZE + calibrationArray.length * 8 + 4);
+        buffer.putInt(CALIBRATION_MAGIC).putShort(CALIBRATION_VERSION).putShort((short) calibrationArray.length);
+        buffer.asDoubleBuffer().put(calibrationArray);
+        buffer.position(buffer.position() + calibrationArray.length * 8);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        try (Spans.Span span = Spans.begin("FileOperations.writeCalibration")) {
+            writeAtomic(context.getFilesDir(), CALIBRATION_FILE, buffer.array(), CALIBRATION_GENERATIONS);
+        } catch (IOException e) {System.out.println (e.toString());
         }
-        numCalibrations++;
-        calibrationArray[testFrequencies.length]=numCalibrations;
-
-        int counter = 0;
-        byte[] calibrationByteArray = new byte[calibrationArray.length * 8]; //
-        for (int x = 0; x < calibrationArray.length; x++){
-            byte[] tmpByteArray = new byte[8];
-            ByteBuffer.wrap(tmpByteArray).putDouble(calibrationArray[x]);
-            for (int j = 0; j < 8; j++){
-                calibrationByteArray[counter] = tmpByteArray[j];
-                counter++;
-            }
+        CalibrationRepository.invalidate();
+    }
 
+    /**
+     * Writes a file so that it is either completely replaced or unchanged after a crash:
+     * the data goes to a temporary file which is synced and then renamed to the target.
+     * The replaced versions are kept as name.1 (newest) to name.generations.
+     */
+    static void writeAtomic(File dir, String name, byte[] data, int generations) throws IOException {
+        File tmp = new File(dir, name + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(data);
+            fos.getFD().sync();
         }
-        try{
-            FileOutputStream fos = context.openFileOutput("CalibrationPreferences", Context.MODE_PRIVATE);
-            try{
-                fos.write(calibrationByteArray);
-                fos.close();
-            } catch (IOException q) {System.out.println (q.toString());}
-        } catch (FileNotFoundException e) {System.out.println (e.toString());
+        File target = new File(dir, name);
+        if (generations > 0 && target.exists()) {
+            for (int g = generations; g > 1; g--) {
+                File older = new File(dir, name + "." + (g - 1));
+                if (older.exists()) older.renameTo(new File(dir, name + "." + g));
+            }
+            target.renameTo(new File(dir, name + ".1"));
         }
+        if (!tmp.renameTo(target)) throw new IOException("Cannot rename " + tmp);
     }
 
     public int readNumCalibrations(Context context){
-        double[] calibrationArray;
-        calibrationArray=readCalibration(context);
-        return (int) calibrationArray[testFrequencies.length];
+        return CalibrationRepository.get(context).getNumCalibrations();
     }
 
+    /**
+     * @return a copy of the cached calibration, the last field is the number of calibrations
+     */
     public double[] readCalibration(Context context) {
-        double[] calibrationArray = new double[testFrequencies.length+1];
-        byte[] calibrationByteData = new byte[8*calibrationArray.length];
-        try{
-            FileInputStream fis = context.openFileInput("CalibrationPreferences");
-            fis.read(calibrationByteData, 0, 8*calibrationArray.length);
-            fis.close();
-        } catch (IOException e) {}
+        return CalibrationRepository.get(context).toArray();
+    }
 
-        int counter = 0;
+    /**
+     * Reads the calibration from storage, the app uses the copy cached by CalibrationRepository.
+     * If the current file is missing or corrupt the newest valid older generation is used.
+     * @return the calibration or null if there is none
+     */
+    double[] loadCalibration(Context context) {
+        return loadCalibration(context.getFilesDir());
+    }
 
-        for (int i = 0; i < calibrationArray.length; i++){
-            byte[] tmpByteBuffer = new byte[8];
-            for (int j = 0; j < 8; j++) {
-                tmpByteBuffer[j] = calibrationByteData[counter];
-                counter++;
+    /**
+     * @param dir - directory with the calibration files, e.g. a restore before it is used
+     */
+    double[] loadCalibration(File dir) {
+        try (Spans.Span span = Spans.begin("FileOperations.loadCalibration")) {
+            for (int g = 0; g <= CALIBRATION_GENERATIONS; g++) {
+                File file = new File(dir, g == 0 ? CALIBRATION_FILE : CALIBRATION_FILE + "." + g);
+                if (!file.exists()) continue;
+                double[] calibrationArray = decodeCalibration(file);
+                if (calibrationArray != null) return calibrationArray;
             }
-            calibrationArray[i] = ByteBuffer.wrap(tmpByteBuffer).getDouble();
-            Log.i("Array Check", "Calibration: " + i + " " + calibrationArray[i]);
+            return null;
+        }
+    }
+
+    /**
+     * @return the values or null if the file is truncated or corrupt
+     */
+    private double[] decodeCalibration(File file) {
+        double[] calibrationArray = new double[testFrequencies.length+1];
+        ByteBuffer buffer;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        } catch (IOException e) {
+            return null;
         }
+        buffer.flip();
+        if (buffer.remaining() >= CALIBRATION_HEADER_SIZE && buffer.getInt(0) == CALIBRATION_MAGIC) {
+            int n = buffer.getShort(6);
+            int length = CALIBRATION_HEADER_SIZE + 8 * n;
+            if (buffer.getShort(4) != CALIBRATION_VERSION || n <= 0 || buffer.remaining() < length + 4) return null;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, length);
+            if (buffer.getInt(length) != (int) crc.getValue()) return null;
+            buffer.position(CALIBRATION_HEADER_SIZE);
+            double[] values = new double[n];
+            buffer.asDoubleBuffer().get(values);
+            //number of calibrations is always last, other values are matched by position
+            System.arraycopy(values, 0, calibrationArray, 0, Math.min(n - 1, testFrequencies.length));
+            calibrationArray[testFrequencies.length] = values[n - 1];
+            return calibrationArray;
+        }
+        if (buffer.remaining() != 8 * calibrationArray.length) return null;  //legacy file without checksum, only complete ones are used
+        buffer.asDoubleBuffer().get(calibrationArray);
         return calibrationArray;
     }
 
-    public void writeTestResult(double[] thresholds_right, double[] thresholds_left, Context context) {
-        int counter;
+    public void writeTestResult(double[] thresholds_right, double[] thresholds_left, int[][] presentations, Context context) {
         SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
-        String user = Integer.toString(prefManager.getInt("user",1));
+        int user = prefManager.getInt("user",1);
+        long currentDateTime = System.currentTimeMillis();
 
-        String currentDateTime = Long.toString(System.currentTimeMillis());
+        TestResult result = TestResult.of(user, currentDateTime, testFrequencies, thresholds_right, thresholds_left, presentations);
 
-        counter = 0;
+        try (Spans.Span span = Spans.begin("FileOperations.writeTestResult")) {
+            ResultsLog.get(context).append(result);
+        } catch (IOException e) {System.out.println (e.toString());}
 
-        byte[] thresholdVolume = new byte[thresholds_right.length * 8 + thresholds_left.length * 8];
+    }
 
-        for (double v : thresholds_right) {
-            byte[] tmpByteArray = new byte[8];
-            ByteBuffer.wrap(tmpByteArray).putDouble(v);
-            for (int j = 0; j < 8; j++) {
-                thresholdVolume[counter] = tmpByteArray[j];
-                counter++;
-            }
+    /**
+     * Reads a test stored in a separate file as done before the ResultsLog, in one bulk read.
+     * Files written before the versioned format are migrated on the fly, taking user and time
+     * from the file name.
+     * @return the test or null if the file is corrupt
+     * @throws IOException if the file cannot be read
+     */
+    public TestResult readTestResultFile(String fileName, Context context) throws IOException {
+        byte[] data;
+        try (Spans.Span span = Spans.begin("FileOperations.readTestResultFile");
+             FileInputStream fis = context.openFileInput(fileName)) {
+            data = new byte[(int) fis.getChannel().size()];
+            new DataInputStream(fis).readFully(data);
         }
-        for (double v : thresholds_left) {
-            byte[] tmpByteArray = new byte[8];
-            ByteBuffer.wrap(tmpByteArray).putDouble(v);
-            for (int j = 0; j < 8; j++) {
-                thresholdVolume[counter] = tmpByteArray[j];
-                counter++;
-            }
+        if (TestResult.isRecord(data, data.length)) return TestResult.decode(data, 0, data.length);
+
+        String[] names = fileName.split("-");
+        try {
+            int user = Integer.parseInt(names[0].substring(names[0].indexOf('U') + 1));
+            return TestResult.decodeLegacy(data, data.length, user, Long.parseLong(names[1]), testFrequencies);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
         }
-
-        try{
-            FileOutputStream fos = context.openFileOutput("TestResultsU"+ user + "-" + currentDateTime, Context.MODE_PRIVATE);
-            try{
-                fos.write(thresholdVolume);
-                fos.close();
-            } catch (IOException q) {}
-        } catch (FileNotFoundException e) {}
-
     }
 
-    public double[][] readTestData(String fileName, Context context) {
-        byte[] testResultsByte = new byte[testFrequencies.length*8+testFrequencies.length*8];
-
-        try{
-            FileInputStream fis = context.openFileInput(fileName);
-            fis.read(testResultsByte, 0, testResultsByte.length);
-            fis.close();
-        } catch (IOException e) {}
-
+    /**
+     * @return thresholds for PerformTest.testFrequencies, left=1, right=0. NaN where no value is stored.
+     */
+    public double[][] readTestData(long timestamp, Context context) {
+        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
         double[][] testResults= new double[2][testFrequencies.length];    //left=1, right=0
-
-        int counter = 0;
-
-        for (int i = 0; i < testFrequencies.length; i++){
-            byte[] tmpByteBuffer = new byte[8];
-            for (int j = 0; j < 8; j++) {
-                tmpByteBuffer[j] = testResultsByte[counter];
-                counter++;
-            }
-            testResults[0][i] = ByteBuffer.wrap(tmpByteBuffer).getDouble();
+        TestResult result;
+        try (Spans.Span span = Spans.begin("FileOperations.readTestData")) {
+            result = ResultsLog.get(context).read(prefManager.getInt("user",1), timestamp);
         }
-
-        for (int i = 0; i < testFrequencies.length; i++){
-            byte[] tmpByteBuffer = new byte[8];
-            for (int j = 0; j < 8; j++) {
-                tmpByteBuffer[j] = testResultsByte[counter];
-                counter++;
-            }
-            testResults[1][i] = ByteBuffer.wrap(tmpByteBuffer).getDouble();
+        if (result == null) {
+            for (double[] ear : testResults) Arrays.fill(ear, Double.NaN);
+            return testResults;
         }
+        testResults[0] = result.thresholdsFor(0, testFrequencies);
+        testResults[1] = result.thresholdsFor(1, testFrequencies);
         return testResults;
     }
 
-    public void deleteTestData(String fileName, Context context){
-        File file = new File(context.getFilesDir()+"/" + fileName);
-        file.delete();
+    public void deleteTestData(long timestamp, Context context){
+        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
+        try (Spans.Span span = Spans.begin("FileOperations.deleteTestData")) {
+            ResultsLog.get(context).delete(prefManager.getInt("user",1), timestamp);
+        } catch (IOException e) {System.out.println (e.toString());}
     }
 
 }
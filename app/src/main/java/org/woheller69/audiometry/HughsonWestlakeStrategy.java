@@ -0,0 +1,122 @@
+package org.woheller69.audiometry;
+
+/**
+ * Modified Hughson-Westlake procedure as used in clinical pure tone audiometry.
+ * Levels are on a 5 dB grid. Until the first response the level is raised in 20 dB steps,
+ * afterwards it is lowered by 10 dB after each response and raised by 5 dB after each miss.
+ * Threshold is the lowest level heard on two ascending presentations.
+ */
+public class HughsonWestlakeStrategy implements ThresholdStrategy {
+    private static final int STEP_DB = 5;
+    private static final int DOWN_STEPS = 2;        // 10 dB down after a response
+    private static final int UP_STEPS = 1;          // 5 dB up after a miss
+    private static final int FAMILIARIZATION_STEPS = 4;  // 20 dB up until first response
+    private static final int REQUIRED_ASCENDING_HITS = 2;
+    static final int MAX_PRESENTATIONS = 30;
+
+    private final int maxIndex = (int) Math.floor(MAX_LEVEL / STEP_DB);
+    private final int[] ascendingTrials = new int[maxIndex + 1];
+    private final int[] ascendingHits = new int[maxIndex + 1];
+    private int current;
+    private boolean familiarization = true;
+    private boolean ascending = false;
+    private int hitsAtMin = 0;
+    private int missesAtMax = 0;
+    private int lowestHeard = -1;
+    private int presentations = 0;
+    private boolean finished = false;
+    private double threshold = MAX_LEVEL;
+
+    /**
+     * @param startLevel - first presentation level in dB, rounded to the 5 dB grid
+     */
+    public HughsonWestlakeStrategy(double startLevel) {
+        current = clamp((int) Math.round(startLevel / STEP_DB));
+    }
+
+    @Override
+    public double nextLevel() {
+        return current * STEP_DB;
+    }
+
+    @Override
+    public void onResponse(boolean heard) {
+        if (finished) return;
+        presentations++;
+        if (heard && (lowestHeard < 0 || current < lowestHeard)) lowestHeard = current;
+
+        if (familiarization) {
+            if (heard) {
+                familiarization = false;
+                descend();
+            } else if (current == maxIndex) {
+                if (++missesAtMax >= 2) finish(maxIndex);
+            } else {
+                current = clamp(current + FAMILIARIZATION_STEPS);
+            }
+        } else {
+            if (ascending) {
+                ascendingTrials[current]++;
+                if (heard && ++ascendingHits[current] >= REQUIRED_ASCENDING_HITS) {
+                    finish(current);
+                    return;
+                }
+            }
+            if (heard) {
+                if (current == 0 && ++hitsAtMin >= 2) {
+                    finish(0);
+                    return;
+                }
+                descend();
+            } else {
+                if (current == maxIndex && ++missesAtMax >= 2) {
+                    finish(maxIndex);
+                    return;
+                }
+                current = clamp(current + UP_STEPS);
+                ascending = true;
+            }
+        }
+        if (!finished && presentations >= MAX_PRESENTATIONS) finish(bestGuess());
+    }
+
+    private void descend() {
+        current = clamp(current - DOWN_STEPS);
+        ascending = false;
+    }
+
+    /**
+     * Used when the presentation limit is reached: lowest level heard on at least half of
+     * the ascending presentations, otherwise the lowest level heard at all
+     */
+    private int bestGuess() {
+        for (int k = 0; k <= maxIndex; k++) {
+            if (ascendingHits[k] > 0 && 2 * ascendingHits[k] >= ascendingTrials[k]) return k;
+        }
+        return lowestHeard >= 0 ? lowestHeard : maxIndex;
+    }
+
+    private void finish(int index) {
+        threshold = index * STEP_DB;
+        finished = true;
+    }
+
+    private int clamp(int index) {
+        return Math.max(0, Math.min(maxIndex, index));
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public double getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public int getPresentations() {
+        return presentations;
+    }
+}
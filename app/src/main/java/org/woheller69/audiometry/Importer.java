@@ -0,0 +1,316 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Merges tests from CSV or JSON Lines files in the layout written by Exporter into the results log.
+ * The file is read line by line. The rows of one test in a CSV file must follow each other,
+ * the columns are found by name, threshold_db or threshold_dbhl is required.
+ * A test is rejected if a frequency is not one of PerformTest.testFrequencies, a threshold is
+ * outside the levels a test can produce, or presentations or flags do not fit the record. Thresholds in dB HL are converted with the current calibration.
+ * Tests whose user and timestamp are already stored are skipped, checked against an index of the
+ * stored timestamps of each user. New tests are appended in batches, stored tests are not touched.
+ * Tests are assigned to the local profile of the same name, which is created if needed, tests
+ * without a profile name to the same user id if it exists, otherwise to the current user.
+ */
+public class Importer {
+    static final int BATCH = 256;  // tests per append
+
+    private final ResultsLog log;
+    private final ProfileStore profiles;
+    private final CalibrationRepository.Snapshot calibration;
+    private final int defaultUser;
+    private final Map<Integer, Set<Long>> keys = new HashMap<>();    // stored timestamps by user
+    private final Map<String, Integer> profileIds = new HashMap<>(); // local user by profile name
+    private final List<TestResult> batch = new ArrayList<>();
+    private int imported = 0;
+    private int duplicates = 0;
+    private int invalid = 0;
+
+    /**
+     * One test while it is read
+     */
+    private class Pending {
+        final int user;
+        final String profile;
+        final long timestamp;
+        final double[][] thresholds = new double[2][testFrequencies.length];
+        final int[][] presentations = new int[2][testFrequencies.length];
+        final int[][] flags = new int[2][testFrequencies.length];
+        boolean hasFlags = false;
+        int earMask = 0;
+        boolean valid = true;
+
+        Pending(int user, String profile, long timestamp) {
+            this.user = user;
+            this.profile = profile;
+            this.timestamp = timestamp;
+            for (double[] ear : thresholds) Arrays.fill(ear, Double.NaN);
+        }
+
+        void set(int ear, int frequency, double db, double dbhl, int presentation, int flag) {
+            int i = index(frequency);
+            if (i < 0) {
+                valid = false;
+                return;
+            }
+            double threshold = !Double.isNaN(db) ? db : Double.isNaN(dbhl) ? Double.NaN : dbhl + calibration.get(i);
+            if (threshold < ThresholdStrategy.MIN_LEVEL || threshold > ThresholdStrategy.MAX_LEVEL) valid = false;
+            if (presentation < 0 || presentation > Short.MAX_VALUE) valid = false;  //stored as short
+            if (flag > Byte.MAX_VALUE) valid = false;  //stored as byte
+            earMask |= ear == 0 ? TestResult.EAR_RIGHT : TestResult.EAR_LEFT;
+            thresholds[ear][i] = threshold;
+            presentations[ear][i] = presentation;
+            if (flag >= 0) {
+                flags[ear][i] = flag;
+                hasFlags = true;
+            }
+        }
+    }
+
+    public Importer(ResultsLog log, ProfileStore profiles, CalibrationRepository.Snapshot calibration, int defaultUser) {
+        this.log = log;
+        this.profiles = profiles;
+        this.calibration = calibration;
+        this.defaultUser = defaultUser;
+    }
+
+    public int getImported() {
+        return imported;
+    }
+
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return rejected tests and CSV rows without a readable user and timestamp
+     */
+    public int getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Imports a file chosen by the user, called off the UI thread
+     * @return false if cancelled, tests of completed batches stay imported
+     */
+    public boolean importFrom(Context context, Uri uri, AtomicBoolean cancel, ProgressTask.Progress progress) throws IOException {
+        long length = 0;
+        try (AssetFileDescriptor descriptor = context.getContentResolver().openAssetFileDescriptor(uri, "r")) {
+            if (descriptor != null) length = Math.max(0, descriptor.getLength());
+        }
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if (in == null) throw new IOException("Cannot open " + uri);
+        return importFrom(in, length, cancel, progress);
+    }
+
+    public boolean importFrom(InputStream in, long length, AtomicBoolean cancel, ProgressTask.Progress progress) throws IOException {
+        long[] done = {0};
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FilterInputStream(in) {  //counts bytes for the progress
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int readLen = super.read(b, off, len);
+                if (readLen > 0) progress.onProgress(done[0] += readLen, length);
+                return readLen;
+            }
+        }, StandardCharsets.UTF_8), 65536)) {
+            String line = reader.readLine();
+            while (line != null && line.trim().isEmpty()) line = reader.readLine();
+            if (line == null) return true;
+            boolean complete = line.trim().startsWith("{") ? readJson(reader, line, cancel) : readCsv(reader, line, cancel);
+            if (complete) flush();
+            return complete;
+        }
+    }
+
+    private boolean readCsv(BufferedReader reader, String header, AtomicBoolean cancel) throws IOException {
+        List<String> columns = splitCsv(header.trim());
+        int user = columns.indexOf("user");
+        int profile = columns.indexOf("profile");
+        int timestamp = columns.indexOf("timestamp");
+        int ear = columns.indexOf("ear");
+        int frequency = columns.indexOf("frequency");
+        int db = columns.indexOf("threshold_db");
+        int dbhl = columns.indexOf("threshold_dbhl");
+        int presentations = columns.indexOf("presentations");
+        int flags = columns.indexOf("flags");
+        if (user < 0 || timestamp < 0 || ear < 0 || frequency < 0 || db < 0 && dbhl < 0) {
+            throw new IOException("Missing columns in " + header);
+        }
+        Pending pending = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (cancel.get()) return false;
+            if (line.trim().isEmpty()) continue;
+            List<String> fields = splitCsv(line);
+            int u;
+            long t;
+            String name;
+            try {
+                u = Integer.parseInt(fields.get(user));
+                t = Long.parseLong(fields.get(timestamp));
+                name = profile >= 0 ? fields.get(profile) : "";
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {  //a row of no known test, the pending test stays valid
+                invalid++;
+                continue;
+            }
+            if (pending == null || pending.user != u || pending.timestamp != t) {
+                finish(pending);
+                pending = new Pending(u, name, t);
+            }
+            try {
+                int s = fields.get(ear).equals("right") ? 0 : fields.get(ear).equals("left") ? 1 : -1;
+                if (s < 0) {
+                    pending.valid = false;
+                    continue;
+                }
+                pending.set(s, Integer.parseInt(fields.get(frequency)),
+                        number(db >= 0 ? fields.get(db) : ""), number(dbhl >= 0 ? fields.get(dbhl) : ""),
+                        presentations >= 0 && !fields.get(presentations).isEmpty() ? Integer.parseInt(fields.get(presentations)) : 0,
+                        flags >= 0 && !fields.get(flags).isEmpty() ? Integer.parseInt(fields.get(flags)) : -1);
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                pending.valid = false;
+            }
+        }
+        finish(pending);
+        return true;
+    }
+
+    private boolean readJson(BufferedReader reader, String line, AtomicBoolean cancel) throws IOException {
+        while (line != null) {
+            if (cancel.get()) return false;
+            if (!line.trim().isEmpty()) {
+                try {
+                    JSONObject test = new JSONObject(line);
+                    Pending pending = new Pending(test.getInt("user"), test.optString("profile", ""), test.getLong("timestamp"));
+                    JSONArray frequencies = test.getJSONArray("frequencies");
+                    for (int s = 0; s < 2; s++) {
+                        JSONObject ear = test.optJSONObject(s == 0 ? "right" : "left");
+                        if (ear == null) continue;
+                        JSONArray db = ear.optJSONArray("threshold_db");
+                        JSONArray dbhl = ear.optJSONArray("threshold_dbhl");
+                        JSONArray presentations = ear.optJSONArray("presentations");
+                        JSONArray flags = ear.optJSONArray("flags");
+                        if (db == null && dbhl == null) pending.valid = false;
+                        for (int k = 0; k < frequencies.length(); k++) {
+                            pending.set(s, frequencies.getInt(k),
+                                    db != null && !db.isNull(k) ? db.getDouble(k) : Double.NaN,
+                                    dbhl != null && !dbhl.isNull(k) ? dbhl.getDouble(k) : Double.NaN,
+                                    presentations != null ? presentations.getInt(k) : 0,
+                                    flags != null ? flags.getInt(k) : -1);
+                        }
+                    }
+                    finish(pending);
+                } catch (JSONException e) {
+                    invalid++;
+                }
+            }
+            line = reader.readLine();
+        }
+        return true;
+    }
+
+    private void finish(Pending pending) throws IOException {
+        if (pending == null) return;
+        if (!pending.valid || pending.earMask == 0) {
+            invalid++;
+            return;
+        }
+        int user = localUser(pending.user, pending.profile);
+        Set<Long> stored = keys.get(user);
+        if (stored == null) {
+            stored = new HashSet<>();
+            for (long timestamp : log.timestamps(user)) stored.add(timestamp);
+            keys.put(user, stored);
+        }
+        if (!stored.add(pending.timestamp)) {
+            duplicates++;
+            return;
+        }
+        int[][] flags = pending.hasFlags ? pending.flags : TestResult.flags(pending.thresholds);  //derived as for new tests
+        batch.add(new TestResult(user, pending.timestamp, testFrequencies, pending.earMask, pending.thresholds, pending.presentations, flags));
+        if (batch.size() >= BATCH) flush();
+    }
+
+    private void flush() throws IOException {
+        log.append(batch);
+        imported += batch.size();
+        batch.clear();
+    }
+
+    private int localUser(int user, String profile) throws IOException {
+        if (profile.isEmpty()) return profiles.getProfile(user) != null ? user : defaultUser;
+        Integer id = profileIds.get(profile);
+        if (id == null) {
+            ProfileStore.Profile local = profiles.find(profile);
+            id = local != null ? local.id : profiles.add(profile).id;
+            profileIds.put(profile, id);
+        }
+        return id;
+    }
+
+    private static int index(int frequency) {
+        for (int i = 0; i < testFrequencies.length; i++) {
+            if (testFrequencies[i] == frequency) return i;
+        }
+        return -1;
+    }
+
+    private static double number(String text) {
+        return text.isEmpty() ? Double.NaN : Double.parseDouble(text);
+    }
+
+    /**
+     * Splits a CSV line, fields may be quoted with "" for a quote
+     */
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (quoted) {
+                if (c == '"' && k + 1 < line.length() && line.charAt(k + 1) == '"') {
+                    field.append('"');
+                    k++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
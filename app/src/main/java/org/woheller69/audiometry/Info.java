@@ -1,6 +1,7 @@
 package org.woheller69.audiometry;
 
 import android.content.Intent;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.Menu;
@@ -8,7 +9,10 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
+import android.widget.HorizontalScrollView;
+import android.widget.TextView;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
 
@@ -43,9 +47,39 @@ public class Info extends AppCompatActivity {
             case android.R.id.home:
                 gotoMain();
             return true;
+            case R.id.span_timings:
+                showSpanTimings();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
+    /**
+     * Shows p50, p95, p99 and max of the recorded spans, see Spans
+     */
+    private void showSpanTimings(){
+        String report = Spans.report();
+        TextView text = new TextView(this);
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextSize(10);
+        text.setPadding(48, 24, 48, 0);
+        text.setTextIsSelectable(true);
+        text.setText(report);
+        HorizontalScrollView scroll = new HorizontalScrollView(this);
+        scroll.addView(text);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.span_timings)
+                .setView(scroll)
+                .setPositiveButton(R.string.span_timings_share, (dialog, whichButton) -> {
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_TEXT, report);
+                    startActivity(Intent.createChooser(intent, getString(R.string.span_timings)));
+                })
+                .setNeutralButton(R.string.span_timings_clear, (dialog, whichButton) -> Spans.clear())
+                .setNegativeButton(R.string.dialog_NO_button, null)
+                .show();
+    }
+
     public void gotoMain(){
         Intent intent = new Intent(this, MainActivity.class);
         startActivity(intent);
@@ -1,5 +1,6 @@
 package org.woheller69.audiometry;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
@@ -12,6 +13,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -20,10 +22,13 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.PreferenceManager;
 
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static android.os.Environment.DIRECTORY_DOCUMENTS;
 
@@ -31,32 +36,50 @@ import static android.os.Environment.DIRECTORY_DOCUMENTS;
 public class MainActivity extends AppCompatActivity {
 
     ActivityResultLauncher<Intent> mRestore;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();  //reads for dialogs
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
-        getSupportActionBar().getThemedContext();
-        getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
-        getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
-        checkShowInvisibleButtons();
+        try (Spans.Span span = Spans.begin("MainActivity.onCreate")) {
+            super.onCreate(savedInstanceState);
+            setContentView(R.layout.activity_main);
+            getSupportActionBar().getThemedContext();
+            getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+            getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
+            checkShowInvisibleButtons();
 
-        mRestore = registerForActivityResult(
-                new ActivityResultContracts.StartActivityForResult(),
-                result -> {
-                      File intData = new File(Environment.getDataDirectory() + "//data//" + this.getPackageName());
-                      if (result.getData()!=null && result.getData().getData()!=null) Backup.zipExtract(this, intData, result.getData().getData());
-                      PerformTest.gain=FileOperations.readGain(this);
-                      //Toast.makeText(this,"Gain: "+PerformTest.gain,Toast.LENGTH_LONG).show();
-                      checkShowInvisibleButtons();
-                });
+            mRestore = registerForActivityResult(
+                    new ActivityResultContracts.StartActivityForResult(),
+                    result -> {
+                          Intent data = result.getData();
+                          List<Uri> zipFiles = new ArrayList<>();
+                          if (data != null && data.getClipData() != null) {  //full archive and its deltas
+                              for (int k = 0; k < data.getClipData().getItemCount(); k++) zipFiles.add(data.getClipData().getItemAt(k).getUri());
+                          } else if (data != null && data.getData() != null) {
+                              zipFiles.add(data.getData());
+                          }
+                          if (!zipFiles.isEmpty()) restore(zipFiles);
+                    });
+        }
     }
 
+    /**
+     * Shows the buttons, the name of the current profile and the menu for the StartupState, at once if it is loaded, otherwise when it is ready
+     */
     private void checkShowInvisibleButtons(){
+        StartupState.load(this, state -> {
+            if (isDestroyed()) return;
+            showButtons(state);
+            Objects.requireNonNull(getSupportActionBar()).setSubtitle(state.profileName);  //null hides it for a user without profile
+            invalidateOptionsMenu();
+        });
+    }
+
+    private void showButtons(StartupState state){
         Button startTest = findViewById(R.id.main_startTest);
         Button startSingleTest = findViewById(R.id.main_startSingleTest);
         Button testResults = findViewById(R.id.main_results);
-        if (FileOperations.isCalibrated(this)) {
+        if (state.calibrated) {
             startTest.setVisibility(View.VISIBLE);
             testResults.setVisibility(View.VISIBLE);
             startSingleTest.setVisibility(View.VISIBLE);
@@ -123,13 +146,11 @@ public class MainActivity extends AppCompatActivity {
 
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.main, menu);
-        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(this);
-        if (prefManager.getInt("user",1)==1) {
-            menu.findItem(R.id.user).setIcon(R.drawable.ic_user1_36dp);
-        } else {
-            menu.findItem(R.id.user).setIcon(R.drawable.ic_user2_36dp);
+        StartupState state = StartupState.peek();  //the menu is updated again when the state is loaded
+        if (state != null) {
+            if (state.profileName != null) menu.findItem(R.id.user).setTitle(state.profileName);
+            menu.findItem(R.id.lowGain).setChecked(state.gain != PerformTest.highGain);
         }
-        menu.findItem(R.id.lowGain).setChecked(FileOperations.readGain(this) != PerformTest.highGain);
 
         return true;
     }
@@ -140,30 +161,17 @@ public class MainActivity extends AppCompatActivity {
         // automatically handle clicks on the Home/Up button, so long
         // as you specify a parent activity in AndroidManifest.xml.
         File extStorage;
-        File intData;
         int id = item.getItemId();
         if (id==R.id.backup) {
             FileOperations.writeGain(this);
-            intData = new File(Environment.getDataDirectory()+"//data//" + this.getPackageName() + "//files//");
             extStorage = Environment.getExternalStoragePublicDirectory(DIRECTORY_DOCUMENTS);
-            String filesBackup = getResources().getString(R.string.app_name)+".zip";
-            final File zipFileBackup = new File(extStorage, filesBackup);
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
             builder.setMessage(getResources().getString(R.string.main_backup));
             builder.setPositiveButton(R.string.dialog_OK_button, (dialog, whichButton) -> {
                 if (!Backup.checkPermissionStorage(this)) {
                     Backup.requestPermission(this);
                 } else {
-                    if (zipFileBackup.exists()){
-                        if (!zipFileBackup.delete()){
-                            Toast.makeText(this,getResources().getString(R.string.toast_delete), Toast.LENGTH_LONG).show();
-                        }
-                    }
-                    try {
-                        new ZipFile(zipFileBackup).addFolder(intData);
-                    } catch (ZipException e) {
-                        Toast.makeText(this,e.toString(), Toast.LENGTH_LONG).show();
-                    }
+                    backup(extStorage);
                 }
             });
             builder.setNegativeButton(R.string.dialog_NO_button, (dialog, whichButton) -> dialog.cancel());
@@ -171,7 +179,6 @@ public class MainActivity extends AppCompatActivity {
             dialog.show();
             Objects.requireNonNull(dialog.getWindow()).setGravity(Gravity.BOTTOM);
         }else if (id==R.id.restore){
-            intData = new File(Environment.getDataDirectory() + "//data//" + this.getPackageName());
             extStorage = Environment.getExternalStoragePublicDirectory(DIRECTORY_DOCUMENTS);
             String filesBackup = getResources().getString(R.string.app_name)+".zip";
             final File zipFileBackup = new File(extStorage, filesBackup);
@@ -184,12 +191,13 @@ public class MainActivity extends AppCompatActivity {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
                         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
                         intent.setType("application/zip");
+                        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                         mRestore.launch(intent);
                     } else {
-                        Backup.zipExtract(this, intData, Uri.fromFile(zipFileBackup));
-                        PerformTest.gain=FileOperations.readGain(this);
-                        //Toast.makeText(this,"Gain: "+PerformTest.gain,Toast.LENGTH_LONG).show();
-                        checkShowInvisibleButtons();
+                        List<Uri> zipFiles = new ArrayList<>();
+                        zipFiles.add(Uri.fromFile(zipFileBackup));
+                        for (File delta : Backup.deltas(extStorage, getResources().getString(R.string.app_name))) zipFiles.add(Uri.fromFile(delta));
+                        restore(zipFiles);
                     }
                 }
             });
@@ -207,31 +215,118 @@ public class MainActivity extends AppCompatActivity {
                 FileOperations.deleteAllFiles(this);
                 FileOperations.writeGain(this);
                 //Toast.makeText(this,"Gain: "+FileOperations.readGain(this),Toast.LENGTH_LONG).show();
+                StartupState.invalidate();
                 checkShowInvisibleButtons();
-                invalidateOptionsMenu();
             });
             builder.setNegativeButton(R.string.dialog_NO_button, (dialog, whichButton) -> dialog.cancel());
             AlertDialog dialog = builder.create();
             dialog.show();
 
         } else if (id==R.id.user){
-            SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(this);
-            if (prefManager.getInt("user",1)==1){
-                item.setIcon(R.drawable.ic_user2_36dp);
-                SharedPreferences.Editor editor = prefManager.edit();
-                editor.putInt("user", 2);
-                editor.apply();
-            } else {
-                item.setIcon(R.drawable.ic_user1_36dp);
-                SharedPreferences.Editor editor = prefManager.edit();
-                editor.putInt("user", 1);
-                editor.apply();
-            }
-            invalidateOptionsMenu();
+            chooseProfile();
         } else if (item.getItemId() == R.id.menu_about) {
             startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse("https://github.com/summerlite9/taiyi_1")));
             return true;
         }
         return super.onOptionsItemSelected(item);
     }
+
+    private void backup(File dir){
+        ProgressTask.run(this, R.string.backup_progress, R.string.backup_done, R.string.backup_cancelled,
+                (cancel, progress) -> Backup.zipCreate(getApplicationContext(), dir, getString(R.string.app_name), cancel, progress),
+                null);
+    }
+
+    private void restore(List<Uri> zipFiles){
+        ProgressTask.run(this, R.string.restore_progress, R.string.restore_done, R.string.restore_cancelled,
+                (cancel, progress) -> Backup.zipExtract(getApplicationContext(), zipFiles, cancel, progress),
+                done -> {
+                    PerformTest.gain=FileOperations.readGain(this);
+                    //Toast.makeText(this,"Gain: "+PerformTest.gain,Toast.LENGTH_LONG).show();
+                    StartupState.invalidate();
+                    checkShowInvisibleButtons();
+                });
+    }
+
+    /**
+     * Dialog to switch to another profile, add one or rename the current one
+     */
+    private void chooseProfile(){
+        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(this);
+        int user = prefManager.getInt("user",1);
+        Context context = getApplicationContext();
+        executor.execute(() -> {  //opening the log maps and scans it
+            List<ProfileStore.Profile> profiles = ProfileStore.get(context).getProfiles();
+            ResultsLog log = ResultsLog.get(context);
+            int[] counts = new int[profiles.size()];
+            for (int k = 0; k < profiles.size(); k++) counts[k] = log != null ? log.count(profiles.get(k).id) : 0;
+            runOnUiThread(() -> {
+                if (!isDestroyed()) showProfiles(user, profiles, counts);
+            });
+        });
+    }
+
+    /**
+     * @param counts - number of tests of each profile
+     */
+    private void showProfiles(int user, List<ProfileStore.Profile> profiles, int[] counts){
+        String[] names = new String[profiles.size()];
+        int checked = -1;
+        for (int k = 0; k < profiles.size(); k++) {
+            ProfileStore.Profile profile = profiles.get(k);
+            names[k] = getString(R.string.profile_tests, profile.name, counts[k]);
+            if (profile.id == user) checked = k;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.profile);
+        builder.setSingleChoiceItems(names, checked, (dialog, which) -> {
+            setUser(profiles.get(which).id);
+            dialog.dismiss();
+        });
+        builder.setPositiveButton(R.string.profile_add, (dialog, whichButton) -> editProfile(null));
+        ProfileStore.Profile current = ProfileStore.get(this).getProfile(user);
+        if (current != null) builder.setNeutralButton(R.string.profile_rename, (dialog, whichButton) -> editProfile(current));
+        builder.setNegativeButton(R.string.dialog_NO_button, (dialog, whichButton) -> dialog.cancel());
+        builder.show();
+    }
+
+    /**
+     * Asks for the name of a new profile or a new name for profile
+     */
+    private void editProfile(ProfileStore.Profile profile){
+        EditText name = new EditText(this);
+        name.setSingleLine();
+        if (profile != null) name.setText(profile.name);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(profile == null ? R.string.profile_add : R.string.profile_rename);
+        builder.setView(name);
+        builder.setPositiveButton(R.string.dialog_OK_button, (dialog, whichButton) -> {
+            String text = name.getText().toString().trim();
+            if (text.isEmpty()) return;
+            try {
+                if (profile == null) setUser(ProfileStore.get(this).add(text).id);
+                else ProfileStore.get(this).rename(profile.id, text);
+            } catch (IOException e) {System.out.println (e.toString());}
+            StartupState.invalidate();
+            checkShowInvisibleButtons();
+        });
+        builder.setNegativeButton(R.string.dialog_NO_button, (dialog, whichButton) -> dialog.cancel());
+        builder.show();
+    }
+
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();
+        super.onDestroy();
+    }
+
+    private void setUser(int user){
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+        editor.putInt("user", user);
+        editor.apply();
+        ProfileStore.Profile profile = ProfileStore.get(this).getProfile(user);
+        if (profile != null) Toast.makeText(this, profile.name, Toast.LENGTH_SHORT).show();
+        StartupState.invalidate();
+        checkShowInvisibleButtons();
+    }
 }
@@ -2,6 +2,7 @@ package org.woheller69.audiometry;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.os.Bundle;
@@ -15,18 +16,20 @@ import static org.woheller69.audiometry.PerformTest.testFrequencies;
 import static org.woheller69.audiometry.PerformTest.gain;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.PreferenceManager;
 
 
 public class PerformSingleTest extends AppCompatActivity {
-    private final float duration = 0.35f;
+    private final float duration = PresentationTiming.TONE_DURATION;
     private final int sampleRate = 44100;
     private final int numSamples = (int) (duration * sampleRate);
     private final int maxVolume = 32767;
     private final int minVolume = 0;
-    private double actualVolume = -1;
+    private volatile double actualVolume = -1;
     private Context context;
     double[] calibrationArray = new double[testFrequencies.length];
     private final Sound sound = new Sound();
+    private volatile ToneStreamer toneStreamer;
     testThread testThread;
     TextView earView;
     TextView dBView;
@@ -35,8 +38,8 @@ public class PerformSingleTest extends AppCompatActivity {
     Button volPlusView;
     Button freqPlusView;
     Button freqMinusView;
-    private int s=0;
-    private int i=0;
+    private volatile int s=0;
+    private volatile int i=0;
 
     public void showToast(final String toast)
     {
@@ -74,12 +77,25 @@ public class PerformSingleTest extends AppCompatActivity {
         startActivity(intent);
     }
 
+    /**
+     * Shows the current parameters and passes them to the streaming tone, if playing
+     */
+    private void updateTone(){
+        if (s==0) setEarView(R.string.right_ear);
+        else setEarView(R.string.left_ear);
+        setFrequencyView(testFrequencies[i]);
+        setdBView(20*Math.log10(actualVolume)-calibrationArray[i]);
+        ToneStreamer streamer = toneStreamer;
+        if (streamer != null) streamer.setTone(testFrequencies[i], actualVolume, s);
+    }
+
     public class testThread extends Thread {
 
-        private boolean stopped = false;
+        private volatile boolean stopped = false;
 
         public void stopThread(){
             stopped = true;
+            interrupt();
         }
 
         public void run() {
@@ -91,6 +107,7 @@ public class PerformSingleTest extends AppCompatActivity {
             volPlusView.setOnClickListener(v -> {
                 actualVolume = (actualVolume*Math.sqrt(2d));
                 if (actualVolume>maxVolume) actualVolume=maxVolume;
+                updateTone();
             });
             volMinusView.setOnClickListener(v -> {
                 actualVolume = (actualVolume/Math.sqrt(2d));
@@ -98,26 +115,35 @@ public class PerformSingleTest extends AppCompatActivity {
                     showToast(getString(R.string.error_volume));
                     actualVolume = 1;
                 }
+                updateTone();
+            });
+            earView.setOnClickListener(v -> {
+                s =(s + 1)%2;
+                updateTone();
             });
-            earView.setOnClickListener(v -> s =(s + 1)%2);
             freqPlusView.setOnClickListener(v -> {
                 int j=i;
                 i=(i+1)%testFrequencies.length;
                 actualVolume=actualVolume*Math.pow(10,(calibrationArray[i]-calibrationArray[j])/20);
                 if (actualVolume>maxVolume) actualVolume=maxVolume;
+                updateTone();
             });
             freqMinusView.setOnClickListener(v -> {
                 int j=i;
                 i=(i+testFrequencies.length-1)%testFrequencies.length;
                 actualVolume=actualVolume*Math.pow(10,(calibrationArray[i]-calibrationArray[j])/20);
                 if (actualVolume>maxVolume) actualVolume=maxVolume;
+                updateTone();
             });
+
+            if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean("streamingTone", true)) {
+                playStreaming();
+                return;
+            }
+
             while (!stopped) {
                 int frequency = testFrequencies[i];
-                if (s==0) setEarView(R.string.right_ear);
-                else setEarView(R.string.left_ear);
-                setFrequencyView(frequency);
-                setdBView(20*Math.log10(actualVolume)-calibrationArray[i]);
+                updateTone();
                 float increment = (float) (2*Math.PI) * frequency / sampleRate;
                 audioTrack = sound.playSound(sound.genTone(increment,(int) actualVolume, numSamples), s, sampleRate);
                 try {
@@ -132,6 +158,28 @@ public class PerformSingleTest extends AppCompatActivity {
             gotoMain();
         }
 
+        /**
+         * Pulses a continuously rendered tone, parameter changes are heard immediately
+         */
+        private void playStreaming() {
+            int fadeSamples = numSamples / 8;  //same fade as Sound.genTone
+            long gateMs = PresentationTiming.TONE_MS - 1000L * fadeSamples / sampleRate;
+            ToneStreamer streamer = new ToneStreamer(sampleRate, fadeSamples);
+            toneStreamer = streamer;
+            updateTone();
+            streamer.start();
+            while (!stopped) {
+                try {
+                    streamer.setGate(true);
+                    Thread.sleep(gateMs);
+                    streamer.setGate(false);
+                    Thread.sleep(randomTime() - gateMs);
+                } catch (InterruptedException e) {}
+            }
+            if (toneStreamer == streamer) toneStreamer = null;
+            streamer.release();
+        }
+
     }
 
 
@@ -171,6 +219,7 @@ public class PerformSingleTest extends AppCompatActivity {
         
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.test_performsingle, menu);
+        menu.findItem(R.id.streaming).setChecked(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("streamingTone", true));
         return true;
     }
 
@@ -184,6 +233,15 @@ public class PerformSingleTest extends AppCompatActivity {
             case android.R.id.home:
                 gotoMain();
                 return true;
+            case R.id.streaming:  //takes effect when the test thread is restarted
+                item.setChecked(!item.isChecked());
+                SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+                editor.putBoolean("streamingTone", item.isChecked());
+                editor.apply();
+                testThread.stopThread();
+                testThread = new testThread();
+                testThread.start();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -2,10 +2,13 @@ package org.woheller69.audiometry;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.os.Bundle;
+
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.PreferenceManager;
 
 import android.view.GestureDetector;
 import android.view.Menu;
@@ -16,16 +19,19 @@ import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 
 
 public class PerformTest extends AppCompatActivity {
     private GestureDetector gestureDetector;
-    private boolean paused = false;
+    private volatile boolean paused = false;
     // 优化音调参数，提高频率精度和降低总谐波失真
-    private final float duration = 0.35f;
+    private final float duration = PresentationTiming.TONE_DURATION;
     private final int sampleRate = 44100; // 高采样率提高频率精度
     private final int numSamples = (int) (duration * sampleRate);
     private final int volume = 32767;
@@ -33,18 +39,22 @@ public class PerformTest extends AppCompatActivity {
     static public final int highGain = 9;
     static public final int defaultGain = highGain;
     static public int gain = defaultGain;
-    // 气导频率覆盖 125Hz~8000 Hz，骨导覆盖 250 Hz~4000 Hz
-    static public final int[] testFrequencies = {125, 250, 500, 1000, 2000, 3000, 4000, 6000, 8000};
-    // 定义听力级控制步进为5 dB
-    private final double dbStepSize = 5.0;
-    static final float[] correctiondBSPLtodBHL ={19.7f,9.0f,2.0f,0f,-3.7f,-8.1f,-7.8f, 2.1f,10.2f}; //estimated from  ISO226:2003 hearing threshold. Taken from https://github.com/IoSR-Surrey/MatlabToolbox/blob/master/%2Biosr/%2Bauditory/iso226.m Corrected to value=0 @1000Hz
-    private boolean heard = false;
-    private boolean skip = false;
+    static public final int[] testFrequencies = TestFrequencies.FREQUENCIES;
+    static final float[] correctiondBSPLtodBHL = TestFrequencies.CORRECTION_DBSPL_TO_DBHL;
+    private volatile boolean heard = false;
+    private volatile boolean skip = false;
     private boolean debug = false;
     public double[] thresholds_right = new double[testFrequencies.length];
     public double[] thresholds_left = new double[testFrequencies.length];
+    public int[][] presentations = new int[2][testFrequencies.length];  //number of tones needed per ear and frequency
+    private String method = ThresholdStrategy.DEFAULT;
+    private double[] calibrationArray;
+    private TestSequencer sequencer;
+    private SessionJournal journal;
     private Context context;
     private final Sound sound = new Sound();
+    private final TestClock clock = TestClock.SYSTEM;
+    private final Random random = new Random();
     testThread testThread;
     TextView earView;
     TextView frequencyView;
@@ -71,9 +81,7 @@ public class PerformTest extends AppCompatActivity {
      * @return
      */
     public int randomTime(){
-
-        double num = Math.random();
-        return (int) (1500+1500*num);
+        return PresentationTiming.randomGap(random);
     }
 
     /**
@@ -108,156 +116,162 @@ public class PerformTest extends AppCompatActivity {
 
     public class testThread extends Thread {
 
-        private boolean stopped = false;
+        private volatile boolean stopped = false;
+        private final testThread previous;
+
+        testThread(testThread previous){
+            this.previous = previous;
+        }
 
         public void stopThread(){
             stopped = true;
+            interrupt();
         }
 
         public void run() {
-
-            //iterated once for every frequency to be tested
-            for (int s = 0; s < 2; s++) {
-                if (s==0) setEarView(R.string.right_ear);
-                else setEarView(R.string.left_ear);
-                if (stopped){break;}
-                if (!intent.getStringExtra("Action").equals("SimpleCalibration")) {
-                    for (int i = 0; i < testFrequencies.length; i++) {
-                        double threshold = singleTest(s, i);
-                        if (s == 0) {
-                            thresholds_right[i] = threshold; //records volume as threshold
-                        } else {
-                            thresholds_left[i] = threshold; //records volume as threshold
-                        }
-                    }
-                }else{
-                    double threshold = singleTest(s, Arrays.binarySearch(testFrequencies, 1000));  // Test at 1000Hz
-                    if (s == 0) {
-                        for (int i=0;i<testFrequencies.length;i++) thresholds_right[i] = correctiondBSPLtodBHL[i] + threshold;
-                    } else {
-                        for (int i=0;i<testFrequencies.length;i++) thresholds_left[i] = correctiondBSPLtodBHL[i] + threshold;
+            if (previous != null) {  //wait until the stopped thread has finished its last presentation
+                try {
+                    previous.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (sequencer == null) sequencer = createSequencer();  //kept while the activity exists, otherwise restored from the journal
+
+            TestTrack track;
+            while (!stopped && (track = sequencer.next(random)) != null) {
+                if (paused) {  //wait until test is continued, responses are not counted while paused
+                    try {
+                        clock.sleep(100);
+                    } catch (InterruptedException e) {
                     }
+                    continue;
+                }
+                try (Spans.Span span = Spans.begin("PerformTest.present")) {
+                    present(track);
                 }
-
-                PerformTest.this.runOnUiThread(bkgrndFlashBlack);
             }
             if (stopped) return;
-
+            PerformTest.this.runOnUiThread(bkgrndFlashBlack);
+
+            boolean simpleCalibration = intent.getStringExtra("Action").equals("SimpleCalibration");
+            for (TestTrack t : sequencer.getTracks()) {
+                double[] thresholds = t.ear == 0 ? thresholds_right : thresholds_left;
+                presentations[t.ear][t.frequencyIndex] = t.getPresentations();
+                if (simpleCalibration) {  // Tested at 1000Hz only
+                    for (int i=0;i<testFrequencies.length;i++) thresholds[i] = correctiondBSPLtodBHL[i] + t.getThreshold();
+                } else {
+                    thresholds[t.frequencyIndex] = t.getThreshold(); //records volume as threshold
+                }
+                if (t.getThreshold() <= ThresholdStrategy.MIN_LEVEL) showToast(getString(R.string.error_volume));
+            }
 
             FileOperations fileOperations = new FileOperations();
 
             if (!intent.getStringExtra("Action").equals("Test")){  //if this was a full or simple calibration store calibration
-                double[] calibrationArray = new double[testFrequencies.length+1];  //last field is used later for number of calibrations
+                double[] calibrationArray = new double[testFrequencies.length];
                 for(int i=0;i<testFrequencies.length;i++){  //for calibration average left/right channels
                     calibrationArray[i]=(thresholds_left[i]+thresholds_right[i])/2;
                 }
                 fileOperations.writeCalibration(calibrationArray, context);
             } else {  // store test result
-                fileOperations.writeTestResult(thresholds_right, thresholds_left, context);
+                fileOperations.writeTestResult(thresholds_right, thresholds_left, presentations, context);
             }
+            journal.delete();
 
             gotoMain();
         }
 
-        public double singleTest(int s, int i) {
-            AudioTrack audioTrack;
-            int frequency = testFrequencies[i];
-            setFrequencyView(frequency);
-            float increment = (float) (2*Math.PI) * frequency / sampleRate;
-            int actualVolume;
-            int maxVolume = volume;
-            int minVolume = 0;
-            int thresVolume = maxVolume;
-            // This is the loop for each individual sample using a binary search algorithm
-            while (!stopped) {
-                int tempResponse = 0;
-
-                // 优化听力级控制步进≤5 dB，精度±3 dB（125 Hz~4 kHz）
-                if (minVolume > 0){  //at least one tone not heard
-                    // 使用精确的5dB步进
-                    double currentdB = 20 * Math.log10(maxVolume);
-                    double targetdB = 20 * Math.log10(minVolume);
-                    double middledB = (currentdB + targetdB) / 2.0;
-                    // 将dB值四舍五入到最接近的5dB步进
-                    middledB = Math.round(middledB / dbStepSize) * dbStepSize;
-                    actualVolume = (int) Math.round(Math.pow(10, middledB / 20.0));
-                } else {
-                    // 首次测试时使用更精确的下降策略
-                    double currentdB = 20 * Math.log10(maxVolume);
-                    // 下降5dB
-                    double targetdB = currentdB - dbStepSize;
-                    actualVolume = (int) Math.round(Math.pow(10, targetdB / 20.0));
+        /**
+         * Creates the tracks for the test. If an interrupted session of the same kind was
+         * journaled it is resumed, otherwise a new journal is started.
+         */
+        private TestSequencer createSequencer() {
+            SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
+            String action = intent.getStringExtra("Action");
+            int user = prefManager.getInt("user",1);
+            if (FileOperations.isCalibrated(context)) calibrationArray = new FileOperations().readCalibration(context);
+
+            SessionJournal.Session session = journal.read();
+            if (session != null && session.action.equals(action) && session.user == user
+                    && System.currentTimeMillis() - session.started < SessionJournal.MAX_AGE_MS) {
+                method = session.method;
+                List<TestTrack> tracks = createTracks(action);
+                if (SessionJournal.restore(session, tracks)) {
+                    showToast(getString(R.string.test_resumed));
+                    return new TestSequencer(tracks, session.interleaved);
                 }
-                if (actualVolume <= 1) {
-                    showToast(getString(R.string.error_volume));
-                    actualVolume = 1;
-                }
-                if (debug) showToast(getString(R.string.debug_amplitude, actualVolume));
-
-                // 优化精度控制，确保在±3 dB范围内
-                if (minVolume > 0) {
-                    double maxdB = 20 * Math.log10(maxVolume);
-                    double mindB = 20 * Math.log10(minVolume);
-                    if (Math.abs(maxdB - mindB) < 3.0) {  // 精度控制在±3 dB
-                        return 20 * Math.log10(thresVolume);
-                    }
+            }
+
+            method = prefManager.getString("thresholdMethod", ThresholdStrategy.DEFAULT);
+            boolean interleaved = prefManager.getBoolean("interleaved", false);
+            journal.start(action, method, interleaved, user, System.currentTimeMillis());
+            return new TestSequencer(createTracks(action), interleaved);
+        }
+
+        private List<TestTrack> createTracks(String action) {
+            List<TestTrack> tracks = new ArrayList<>();
+            for (int s = 0; s < 2; s++) {  //right ear first
+                if (action.equals("SimpleCalibration")) {
+                    int i = Arrays.binarySearch(testFrequencies, 1000);
+                    tracks.add(new TestTrack(s, i, ThresholdStrategy.create(method, startLevel(i))));
                 } else {
-                    for (int z = 0; z < 3; z++) { //iterate three times per volume level
-                        if (stopped) {
-                            break;
-                        }
-                        if (paused) {
-                            z = 0;
-                            tempResponse = 0;
-                        }
-                        heard = false;
-                        skip = false;
-                        // 优化音调切换，确保上升/下降时间≤200ms，无瞬态干扰
-                        long startTime = System.currentTimeMillis();
-                        audioTrack = sound.playSound(sound.genTone(increment, actualVolume, numSamples), s, sampleRate);
-                        
-                        // 确保音调播放完成后再继续
-                        try {
-                            // 等待音频播放完成
-                            Thread.sleep((long)(duration * 1000) + 50); // 确保音频完全播放，显式转换为long
-                            
-                            // 计算已经过去的时间
-                            long elapsedTime = System.currentTimeMillis() - startTime;
-                            // 计算剩余需要等待的随机时间
-                            long remainingWaitTime = randomTime() - elapsedTime;
-                            if (remainingWaitTime > 0) {
-                                Thread.sleep(remainingWaitTime);
-                            }
-                        } catch (InterruptedException e) {
-                        }
-                        
-                        audioTrack.release();
-                        if (heard) tempResponse++;
-                        if (skip) tempResponse=3;
-                         // Checks if the first two test were positive, and skips the third if true. Helps speed the test along.
-                        if (tempResponse >= 2) {
-                            break;
-                        }
-                        // Check if the first two tests were misses, and skips the third if this is the case.
-                        if (z == 1 && tempResponse == 0) {
-                            break;
-                        }
+                    for (int i = 0; i < testFrequencies.length; i++) {
+                        tracks.add(new TestTrack(s, i, ThresholdStrategy.create(method, startLevel(i))));
                     }
-                    //If the response was positive two out of three times, register as heard
-                    if (tempResponse >= 2) {
-                        thresVolume = actualVolume;
-                        maxVolume = actualVolume;
-                    } else {
-                        if (minVolume > 0){ //at least one tone not heard
-                            minVolume = actualVolume;
-                        } else {
-                            minVolume = (int) (actualVolume/Math.sqrt(2)); //if not heard for first time set minVolume 3dB below actualVolume. So we will test this level again if a higher level is heard
-                        }
+                }
+            }
+            return tracks;
+        }
 
-                    }
-                } //continue with test
+        /**
+         * Plays one tone of the track and records the response
+         */
+        private void present(TestTrack track) {
+            AudioTrack audioTrack;
+            int s = track.ear;
+            int frequency = testFrequencies[track.frequencyIndex];
+            if (s==0) setEarView(R.string.right_ear);
+            else setEarView(R.string.left_ear);
+            setFrequencyView(frequency);
+            float increment = (float) (2*Math.PI) * frequency / sampleRate;
+            int actualVolume = (int) Math.round(Math.pow(10, track.nextLevel() / 20.0));
+            if (debug) showToast(getString(R.string.debug_amplitude, actualVolume));
+
+            heard = false;
+            skip = false;
+            // 优化音调切换，确保上升/下降时间≤200ms，无瞬态干扰
+            long startTime = clock.currentTimeMillis();
+            audioTrack = sound.playSound(sound.genTone(increment, actualVolume, numSamples), s, sampleRate);
+
+            // 确保音调播放完成后再继续，然后等待剩余的随机时间
+            try {
+                if (sequencer.isInterleaved()) PresentationTiming.waitForResponse(clock, startTime, () -> heard || skip, PresentationTiming.randomDelay(random));
+                else PresentationTiming.waitForNextTone(clock, startTime, randomTime());
+            } catch (InterruptedException e) {
             }
-            return 0;
+
+            audioTrack.release();
+            if (stopped || paused) return;
+            double level = track.nextLevel();
+            track.record(heard || skip);  //double tap counts as heard and speeds up the test
+            journal.presentation(track, level, heard || skip);
+            if (track.isFinished()) {
+                journal.finished(track);
+                if (debug) showToast(getString(R.string.debug_presentations, frequency, track.getPresentations()));
+            }
+        }
+
+        /**
+         * Starting level for the threshold search at frequency index i.
+         * Tests start 30 dB above the calibrated normal hearing threshold, calibrations at the
+         * previous calibration if available.
+         */
+        private double startLevel(int i) {
+            if (calibrationArray == null) return ThresholdStrategy.MAX_LEVEL / 2;
+            double start = calibrationArray[i];
+            if (intent.getStringExtra("Action").equals("Test")) start += 30;
+            return Math.max(ThresholdStrategy.MIN_LEVEL, Math.min(ThresholdStrategy.MAX_LEVEL, start));
         }
 
 
@@ -309,6 +323,7 @@ public class PerformTest extends AppCompatActivity {
         frequencyView = findViewById(R.id.frequency);
         progressView = findViewById(R.id.progress);
         intent = getIntent();
+        journal = new SessionJournal(getNoBackupFilesDir());
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
         getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
     }
@@ -318,7 +333,7 @@ public class PerformTest extends AppCompatActivity {
         gain=FileOperations.readGain(this);
         AudioManager am = (AudioManager)getSystemService(AUDIO_SERVICE);
         am.setStreamVolume(AudioManager.STREAM_MUSIC, gain,  0);
-        testThread = new testThread();
+        testThread = new testThread(testThread);
         testThread.start();
         super.onResume();
     }
@@ -334,6 +349,11 @@ public class PerformTest extends AppCompatActivity {
         
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.test_perform, menu);
+        String method = PreferenceManager.getDefaultSharedPreferences(this).getString("thresholdMethod", ThresholdStrategy.DEFAULT);
+        if (method.equals(ThresholdStrategy.BAYESIAN)) menu.findItem(R.id.method_bayesian).setChecked(true);
+        else if (method.equals(ThresholdStrategy.BISECTION)) menu.findItem(R.id.method_bisection).setChecked(true);
+        else menu.findItem(R.id.method_hughson_westlake).setChecked(true);
+        menu.findItem(R.id.interleaved).setChecked(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("interleaved", false));
         return true;
     }
 
@@ -343,14 +363,37 @@ public class PerformTest extends AppCompatActivity {
         // automatically handle clicks on the Home/Up button, so long
         // as you specify a parent activity in AndroidManifest.xml.
         int id = item.getItemId();
-        if  (id == android.R.id.home ) {
+        if  (id == android.R.id.home ) {  //test is abandoned, do not resume it
+            testThread.stopThread();
+            journal.delete();
             gotoMain();
         } else if ( id == R.id.debug) {
             debug = true;
+        } else if (id == R.id.method_hughson_westlake) {
+            setThresholdMethod(item, ThresholdStrategy.HUGHSON_WESTLAKE);
+        } else if (id == R.id.method_bayesian) {
+            setThresholdMethod(item, ThresholdStrategy.BAYESIAN);
+        } else if (id == R.id.method_bisection) {
+            setThresholdMethod(item, ThresholdStrategy.BISECTION);
+        } else if (id == R.id.interleaved) {
+            item.setChecked(!item.isChecked());
+            SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+            editor.putBoolean("interleaved", item.isChecked());
+            editor.apply();
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Stores the threshold search method, used from the next test on
+     */
+    private void setThresholdMethod(MenuItem item, String method){
+        item.setChecked(true);
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+        editor.putString("thresholdMethod", method);
+        editor.apply();
+    }
+
     @Override
     public void onStop(){
         super.onStop();
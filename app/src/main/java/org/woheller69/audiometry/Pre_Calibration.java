@@ -1,6 +1,7 @@
 package org.woheller69.audiometry;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -9,26 +10,39 @@ import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.PreferenceManager;
 
 
-public class Pre_Calibration extends AppCompatActivity {
+public class Pre_Calibration extends AppCompatActivity implements CalibrationRepository.Listener {
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_pre__calibration);
-        Button delete = findViewById(R.id.delete);
-        TextView num = findViewById(R.id.numCalibrations);
-        FileOperations fileOperations = new FileOperations();
-        num.setText(String.format(getResources().getString(R.string.num_calibrations), fileOperations.readNumCalibrations(this)));
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
         getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
-        if (FileOperations.isCalibrated(this)) {delete.setVisibility(View.VISIBLE);}
-
+        showCalibration();
+        CalibrationRepository.addListener(this);
+    }
 
+    @Override
+    protected void onDestroy() {
+        CalibrationRepository.removeListener(this);
+        super.onDestroy();
+    }
 
+    @Override
+    public void onCalibrationChanged() {
+        showCalibration();
+    }
 
+    private void showCalibration() {
+        Button delete = findViewById(R.id.delete);
+        TextView num = findViewById(R.id.numCalibrations);
+        FileOperations fileOperations = new FileOperations();
+        num.setText(String.format(getResources().getString(R.string.num_calibrations), fileOperations.readNumCalibrations(this)));
+        delete.setVisibility(FileOperations.isCalibrated(this) ? View.VISIBLE : View.GONE);
     }
 
     public void gotoCalibration(View view){
@@ -60,6 +74,10 @@ public class Pre_Calibration extends AppCompatActivity {
         
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.pre__calibration, menu);
+        String statistic = PreferenceManager.getDefaultSharedPreferences(this).getString("calibrationStatistic", CalibrationHistory.DEFAULT);
+        if (statistic.equals(CalibrationHistory.MEAN)) menu.findItem(R.id.statistic_mean).setChecked(true);
+        else if (statistic.equals(CalibrationHistory.TRIMMED_MEAN)) menu.findItem(R.id.statistic_trimmed_mean).setChecked(true);
+        else menu.findItem(R.id.statistic_median).setChecked(true);
         return true;
     }
 
@@ -73,9 +91,29 @@ public class Pre_Calibration extends AppCompatActivity {
             case android.R.id.home:
                 gotoMain();
                 return true;
+            case R.id.statistic_median:
+                setStatistic(item, CalibrationHistory.MEDIAN);
+                return true;
+            case R.id.statistic_trimmed_mean:
+                setStatistic(item, CalibrationHistory.TRIMMED_MEAN);
+                return true;
+            case R.id.statistic_mean:
+                setStatistic(item, CalibrationHistory.MEAN);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Stores how calibration runs are combined and recomputes the calibration from the history
+     */
+    private void setStatistic(MenuItem item, String statistic){
+        item.setChecked(true);
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+        editor.putString("calibrationStatistic", statistic);
+        editor.apply();
+        if (FileOperations.isCalibrated(this)) new FileOperations().updateCalibration(this);
+    }
+
 
 }
@@ -0,0 +1,64 @@
+package org.woheller69.audiometry;
+
+import java.util.Random;
+
+/**
+ * Timing of tone presentations in PerformTest. Tones start at random intervals so the
+ * listener cannot anticipate them.
+ * Sequential tests wait the full random gap after each tone. Interleaved tests continue as
+ * soon as a response arrives or the response window times out, followed by a short random delay.
+ */
+public class PresentationTiming {
+    public static final float TONE_DURATION = 0.35f;  //seconds
+    public static final long TONE_MS = (long) (TONE_DURATION * 1000);
+    public static final long PLAYBACK_MARGIN_MS = 50;  //wait until tone has been played completely
+    public static final int MIN_GAP_MS = 1500;
+    public static final int MAX_GAP_MS = 3000;
+    public static final int RESPONSE_WINDOW_MS = 1000;  //after the end of the tone
+    public static final int MIN_DELAY_MS = 400;
+    public static final int MAX_DELAY_MS = 1000;
+    private static final int POLL_MS = 20;
+
+    public interface ResponseFlag {
+        boolean isSet();
+    }
+
+    /**
+     * Randomly picks time gap between test tones in ms
+     */
+    public static int randomGap(Random random) {
+        return (int) (MIN_GAP_MS + (MAX_GAP_MS - MIN_GAP_MS) * random.nextDouble());
+    }
+
+    /**
+     * Waits until the tone started at startTime has been played and the random gap is over
+     * @return time spent since startTime in ms
+     */
+    public static long waitForNextTone(TestClock clock, long startTime, int gap) throws InterruptedException {
+        clock.sleep(TONE_MS + PLAYBACK_MARGIN_MS);
+        long remainingWaitTime = gap - (clock.currentTimeMillis() - startTime);
+        if (remainingWaitTime > 0) clock.sleep(remainingWaitTime);
+        return clock.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Randomly picks the delay between a resolved presentation and the next tone in ms
+     */
+    public static int randomDelay(Random random) {
+        return (int) (MIN_DELAY_MS + (MAX_DELAY_MS - MIN_DELAY_MS) * random.nextDouble());
+    }
+
+    /**
+     * Waits until the tone started at startTime has been played and the listener responded or
+     * the response window is over, then waits a random delay
+     * @return time spent since startTime in ms
+     */
+    public static long waitForResponse(TestClock clock, long startTime, ResponseFlag response, int delay) throws InterruptedException {
+        long toneEnd = startTime + TONE_MS + PLAYBACK_MARGIN_MS;
+        long deadline = startTime + TONE_MS + RESPONSE_WINDOW_MS;
+        while (!response.isSet() && clock.currentTimeMillis() < deadline) clock.sleep(POLL_MS);
+        if (clock.currentTimeMillis() < toneEnd) clock.sleep(toneEnd - clock.currentTimeMillis());
+        clock.sleep(delay);
+        return clock.currentTimeMillis() - startTime;
+    }
+}
@@ -0,0 +1,132 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table of the people tested with this app, one line "id TAB name" per profile in the file
+ * Profiles. The id is the user stored with each test and in the preference "user".
+ * Without the file the two users of earlier versions exist with default names.
+ * The table is held in memory, the tests of a profile are found through the index of ResultsLog.
+ */
+public class ProfileStore {
+    public static final String FILE_NAME = "Profiles";
+
+    private static ProfileStore instance;
+
+    private final File file;
+    private final List<Profile> profiles = new ArrayList<>();
+
+    public static class Profile {
+        public final int id;
+        public final String name;
+
+        Profile(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    ProfileStore(File file, String defaultName) {
+        this.file = file;
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 2);
+                    if (fields.length < 2) continue;
+                    try {
+                        profiles.add(new Profile(Integer.parseInt(fields[0]), fields[1]));
+                    } catch (NumberFormatException e) {
+                        System.out.println(e.toString());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+        if (profiles.isEmpty()) {
+            profiles.add(new Profile(1, String.format(defaultName, 1)));
+            profiles.add(new Profile(2, String.format(defaultName, 2)));
+        }
+    }
+
+    public static synchronized ProfileStore get(Context context) {
+        if (instance == null) instance = new ProfileStore(new File(context.getFilesDir(), FILE_NAME), context.getString(R.string.profile_default));
+        return instance;
+    }
+
+    /**
+     * Drops the loaded table, e.g. after its file was deleted or restored
+     */
+    public static synchronized void reset() {
+        instance = null;
+    }
+
+    public synchronized List<Profile> getProfiles() {
+        return Collections.unmodifiableList(new ArrayList<>(profiles));
+    }
+
+    /**
+     * @return the profile or null if there is none with this id
+     */
+    public synchronized Profile getProfile(int id) {
+        for (Profile profile : profiles) {
+            if (profile.id == id) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * @return the first profile with this name or null
+     */
+    public synchronized Profile find(String name) {
+        for (Profile profile : profiles) {
+            if (profile.name.equals(name)) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * @return the new profile, its id is one above the highest id so far
+     */
+    public synchronized Profile add(String name) throws IOException {
+        int id = 0;
+        for (Profile profile : profiles) id = Math.max(id, profile.id);
+        Profile profile = new Profile(id + 1, clean(name));
+        profiles.add(profile);
+        try {
+            save();
+        } catch (IOException e) {
+            profiles.remove(profile);
+            throw e;
+        }
+        return profile;
+    }
+
+    public synchronized void rename(int id, String name) throws IOException {
+        for (int k = 0; k < profiles.size(); k++) {
+            if (profiles.get(k).id == id) profiles.set(k, new Profile(id, clean(name)));
+        }
+        save();
+    }
+
+    private static String clean(String name) {
+        return name.replaceAll("[\\t\\r\\n]", " ").trim();
+    }
+
+    private void save() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Profile profile : profiles) text.append(profile.id).append('\t').append(profile.name).append('\n');
+        FileOperations.writeAtomic(file.getParentFile(), file.getName(), text.toString().getBytes(StandardCharsets.UTF_8), 0);
+    }
+}
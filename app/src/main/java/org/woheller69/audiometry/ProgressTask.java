@@ -0,0 +1,73 @@
+package org.woheller69.audiometry;
+
+import android.app.Activity;
+import android.widget.ProgressBar;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a long operation such as backup, restore or export on a worker thread
+ * with a progress dialog that allows to cancel it
+ */
+public class ProgressTask {
+
+    public interface Progress {
+        void onProgress(long done, long total);
+    }
+
+    public interface Task {
+        /** @return false if cancelled */
+        boolean run(AtomicBoolean cancel, Progress progress) throws IOException;
+    }
+
+    public interface Finished {
+        /** @param done - false if cancelled or failed */
+        void onFinished(boolean done);
+    }
+
+    /**
+     * @param doneMessage - shown on success, 0 if finished shows the result
+     * @param finished - called on the UI thread afterwards, may be null
+     */
+    public static void run(Activity activity, int message, int doneMessage, int cancelledMessage, Task task, Finished finished) {
+        AtomicBoolean cancel = new AtomicBoolean(false);
+        ProgressBar progressBar = new ProgressBar(activity, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(100);
+        progressBar.setPadding(48, 24, 48, 0);
+        AlertDialog progressDialog = new AlertDialog.Builder(activity)
+                .setMessage(message)
+                .setView(progressBar)
+                .setCancelable(false)
+                .setNegativeButton(R.string.dialog_NO_button, (dialog, whichButton) -> cancel.set(true))
+                .show();
+        new Thread(() -> {
+            int[] percent = {0};
+            boolean done = false;
+            String text;
+            try {
+                done = task.run(cancel, (count, total) -> {
+                    int p = total > 0 ? (int) Math.min(100, 100 * count / total) : 0;
+                    if (p == percent[0]) return;  //update the UI once per percent
+                    percent[0] = p;
+                    activity.runOnUiThread(() -> progressBar.setProgress(p));
+                });
+                text = done && doneMessage == 0 ? null : activity.getString(done ? doneMessage : cancelledMessage);
+            } catch (IOException e) {
+                System.out.println (e.toString());
+                text = e.getMessage();
+            }
+            String result = text;
+            boolean success = done;
+            activity.runOnUiThread(() -> {
+                if (activity.isDestroyed()) return;
+                progressDialog.dismiss();
+                if (result != null) Toast.makeText(activity, result, Toast.LENGTH_LONG).show();
+                if (finished != null) finished.onFinished(success);
+            });
+        }).start();
+    }
+}
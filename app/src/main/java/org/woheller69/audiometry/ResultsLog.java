@@ -0,0 +1,429 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * All stored tests in one append-only file of fixed-size slots, memory-mapped for reading.
+ * The mapping is renewed only when the log has doubled since it was made, slots appended since
+ * then are read from the file, so appending tests one at a time does not map the file each time.
+ * File header (16 bytes): int magic "hLOG", short version, short slot size, 8 bytes reserved.
+ * Slot: byte status (1=valid, 0=deleted), 3 bytes reserved, int record length, TestResult record,
+ * zero padding.
+ * An index of user and timestamp to slot is rebuilt from the slot headers when the file is opened,
+ * so listing the tests of a user and locating a test need no file access.
+ * A user has at most one test per timestamp, append() refuses a second one.
+ * Appends are synced before they are indexed. Slots at the end of the file whose record does not
+ * pass the checksum are left over from an interrupted append and are cut off when the file is opened.
+ * Test result files of earlier versions are migrated into the log when it is opened.
+ */
+public class ResultsLog {
+    public static final String FILE_NAME = "ResultsLog";
+    static final int MAGIC = 0x684C4F47;  // "hLOG"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 512;
+    static final int SLOT_HEADER_SIZE = 8;
+    static final int MAX_RECORD_SIZE = SLOT_SIZE - SLOT_HEADER_SIZE;
+    private static final byte STATUS_VALID = 1;
+    private static final byte STATUS_DELETED = 0;
+    // offsets of user and timestamp within a TestResult record
+    private static final int RECORD_USER = 8;
+    private static final int RECORD_TIMESTAMP = 12;
+
+    private static ResultsLog instance;
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Notified on the thread that changes the log
+     */
+    public interface Listener {
+        void onAppended(TestResult result);
+        void onDeleted(TestResult result);
+        /** The log was closed because its file is deleted or replaced, cached data is stale */
+        void onReset();
+    }
+
+    public interface Visitor {
+        void visit(TestResult result);
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer mapped;  // slots 0 to mappedSlots - 1
+    private int mappedSlots;
+    private int slots;
+    private final Map<Integer, UserIndex> index = new HashMap<>();
+
+    /**
+     * Timestamps of one user in ascending order with their slots
+     */
+    static class UserIndex {
+        long[] timestamps = new long[16];
+        int[] slots = new int[16];
+        int size = 0;
+
+        int find(long timestamp) {
+            return Arrays.binarySearch(timestamps, 0, size, timestamp);
+        }
+
+        /**
+         * @return the slot replaced by a newer one with the same timestamp, -1 if none
+         */
+        int add(long timestamp, int slot) {
+            int position = find(timestamp);
+            if (position >= 0) {  //newer slot replaces an older one with the same timestamp
+                int replaced = slots[position];
+                slots[position] = slot;
+                return replaced;
+            }
+            position = -position - 1;
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, 2 * size);
+                slots = Arrays.copyOf(slots, 2 * size);
+            }
+            System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+            System.arraycopy(slots, position, slots, position + 1, size - position);
+            timestamps[position] = timestamp;
+            slots[position] = slot;
+            size++;
+            return -1;
+        }
+
+        void remove(int position) {
+            System.arraycopy(timestamps, position + 1, timestamps, position, size - position - 1);
+            System.arraycopy(slots, position + 1, slots, position, size - position - 1);
+            size--;
+        }
+    }
+
+    public ResultsLog(File logFile) throws IOException {
+        file = new RandomAccessFile(logFile, "rw");
+        channel = file.getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) SLOT_SIZE);
+            header.rewind();
+            channel.write(header, 0);
+            channel.truncate(HEADER_SIZE);
+            channel.force(true);
+        }
+        ByteBuffer header = ByteBuffer.allocate(8);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            file.close();
+            throw new IOException("Not a results log: " + logFile);
+        }
+        if (header.getShort(4) != VERSION || header.getShort(6) != SLOT_SIZE) {  //slots would be read at wrong offsets
+            file.close();
+            throw new IOException("Unsupported results log version " + header.getShort(4) + " with slot size " + header.getShort(6) + ": " + logFile);
+        }
+        slots = (int) ((channel.size() - HEADER_SIZE) / SLOT_SIZE);  //an incomplete last slot is overwritten by the next append
+        map(true);
+        int valid = slots;
+        while (valid > 0 && !isComplete(valid - 1)) valid--;
+        if (valid < slots) {
+            slots = valid;
+            channel.truncate(HEADER_SIZE + (long) slots * SLOT_SIZE);
+            channel.force(true);
+            map(true);  //the old mapping extends past the end of the file
+        }
+        boolean duplicates = false;
+        for (int slot = 0; slot < slots; slot++) {
+            ByteBuffer buffer = slot(slot);
+            if (buffer.get(0) != STATUS_VALID) continue;
+            int user = buffer.getInt(SLOT_HEADER_SIZE + RECORD_USER);
+            long timestamp = buffer.getLong(SLOT_HEADER_SIZE + RECORD_TIMESTAMP);
+            int replaced = userIndex(user).add(timestamp, slot);
+            if (replaced >= 0) {  //written before append refused duplicates, it would come back after a delete
+                markDeleted(replaced);
+                duplicates = true;
+            }
+        }
+        if (duplicates) channel.force(false);
+    }
+
+    /**
+     * Checks a log file before it is used, e.g. a restored one. A torn last append is cut off.
+     * @return number of tests whose record fails the checksum
+     * @throws IOException if the file is not a results log of this version and slot size
+     */
+    static int verify(File logFile) throws IOException {
+        ResultsLog log = new ResultsLog(logFile);
+        try {
+            int corrupt = 0;
+            for (int slot = 0; slot < log.slots; slot++) {
+                if (log.slot(slot).get(0) == STATUS_VALID && log.readSlot(slot) == null) corrupt++;
+            }
+            return corrupt;
+        } finally {
+            log.file.close();
+        }
+    }
+
+    /**
+     * @return the log of this app, opened on first use
+     */
+    public static synchronized ResultsLog get(Context context) {
+        if (instance == null) {
+            File logFile = new File(context.getFilesDir(), FILE_NAME);
+            try {
+                try {
+                    instance = new ResultsLog(logFile);
+                } catch (IOException e) {  //keep an unreadable log for inspection and start a new one
+                    System.out.println(e.toString());
+                    logFile.renameTo(new File(context.getFilesDir(), FILE_NAME + ".corrupt"));
+                    instance = new ResultsLog(logFile);
+                }
+                instance.migrate(context);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the log, e.g. before its file is deleted or replaced. It is reopened by the next get().
+     */
+    public static synchronized void reset() {
+        if (instance != null) {
+            try {
+                instance.file.close();
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+            instance = null;
+        }
+        for (Listener listener : listeners) listener.onReset();
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return false if the slot is left over from an interrupted append
+     */
+    private boolean isComplete(int slot) {
+        byte status = slot(slot).get(0);
+        if (status == STATUS_DELETED) return true;
+        return status == STATUS_VALID && readSlot(slot) != null;
+    }
+
+    /**
+     * Maps all slots if forced or if there are at least as many slots after the mapped ones as in it.
+     * A mapping cannot extend past the end of the file, the channel would grow the file to its size.
+     */
+    private void map(boolean force) throws IOException {
+        if (!force && slots - mappedSlots < Math.max(mappedSlots, 1)) return;
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+        mappedSlots = slots;
+    }
+
+    /**
+     * @return the bytes of a slot starting at index 0, from the mapping or read from the file
+     */
+    private ByteBuffer slot(int slot) {
+        int offset = HEADER_SIZE + slot * SLOT_SIZE;
+        if (slot < mappedSlots) {
+            ByteBuffer buffer = mapped.duplicate();
+            buffer.position(offset);
+            buffer.limit(offset + SLOT_SIZE);
+            return buffer.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);  //a short read leaves zeros, i.e. no valid record
+        try {
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private UserIndex userIndex(int user) {
+        UserIndex userIndex = index.get(user);
+        if (userIndex == null) {
+            userIndex = new UserIndex();
+            index.put(user, userIndex);
+        }
+        return userIndex;
+    }
+
+    /**
+     * Moves test result files of earlier versions into the log. A file is deleted only when its test
+     * is in the log. Files that fail to read are kept for the next attempt, files that cannot be
+     * decoded are renamed to .corrupt.
+     */
+    private void migrate(Context context) throws IOException {
+        FileOperations fileOperations = new FileOperations();
+        List<TestResult> results = new ArrayList<>();
+        List<String> migrated = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        for (String name : context.fileList()) {
+            if (!name.startsWith("TestResultsU") || name.endsWith(".corrupt")) continue;
+            TestResult result;
+            try {
+                result = fileOperations.readTestResultFile(name, context);
+            } catch (IOException e) {
+                System.out.println (e.toString());
+                continue;
+            }
+            if (result == null) {
+                File file = new File(context.getFilesDir(), name);
+                file.renameTo(new File(context.getFilesDir(), name + ".corrupt"));
+                continue;
+            }
+            if (!contains(result.user, result.timestamp) && keys.add(result.user + "/" + result.timestamp)) results.add(result);
+            migrated.add(name);
+        }
+        if (migrated.isEmpty()) return;
+        append(results);  //throws before anything is deleted
+        for (String name : migrated) context.deleteFile(name);
+    }
+
+    private void markDeleted(int slot) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[]{STATUS_DELETED}), HEADER_SIZE + (long) slot * SLOT_SIZE);
+    }
+
+    public synchronized boolean contains(int user, long timestamp) {
+        UserIndex userIndex = index.get(user);
+        return userIndex != null && userIndex.find(timestamp) >= 0;
+    }
+
+    public synchronized void append(TestResult result) throws IOException {
+        List<TestResult> results = new ArrayList<>();
+        results.add(result);
+        append(results);
+    }
+
+    /**
+     * Appends several tests with one write
+     * @throws IOException if a test of the same user and timestamp is stored or in results twice
+     */
+    public synchronized void append(List<TestResult> results) throws IOException {
+        if (results.isEmpty()) return;
+        Set<String> keys = new HashSet<>();
+        for (TestResult result : results) {
+            if (contains(result.user, result.timestamp) || !keys.add(result.user + "/" + result.timestamp)) {
+                throw new IOException("Test " + result.timestamp + " of user " + result.user + " is already stored");
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(results.size() * SLOT_SIZE);
+        for (TestResult result : results) {
+            byte[] record = result.encode();
+            if (record.length > MAX_RECORD_SIZE) throw new IOException("Test result too large: " + record.length);
+            int start = buffer.position();
+            buffer.put(STATUS_VALID).put(new byte[3]).putInt(record.length).put(record);
+            buffer.position(start + SLOT_SIZE);
+        }
+        buffer.rewind();
+        long position = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        channel.force(true);
+        for (TestResult result : results) userIndex(result.user).add(result.timestamp, slots++);
+        map(false);
+        for (TestResult result : results) {
+            for (Listener listener : listeners) listener.onAppended(result);
+        }
+    }
+
+    /**
+     * @return number of tests of a user
+     */
+    public synchronized int count(int user) {
+        UserIndex userIndex = index.get(user);
+        return userIndex == null ? 0 : userIndex.size;
+    }
+
+    /**
+     * @return timestamps of all tests of a user, newest first
+     */
+    public synchronized long[] timestamps(int user) {
+        UserIndex userIndex = index.get(user);
+        if (userIndex == null) return new long[0];
+        long[] result = new long[userIndex.size];
+        for (int i = 0; i < userIndex.size; i++) result[i] = userIndex.timestamps[userIndex.size - 1 - i];
+        return result;
+    }
+
+    /**
+     * @return the test or null if it does not exist or is corrupt
+     */
+    public synchronized TestResult read(int user, long timestamp) {
+        UserIndex userIndex = index.get(user);
+        if (userIndex == null) return null;
+        int position = userIndex.find(timestamp);
+        return position < 0 ? null : readSlot(userIndex.slots[position]);
+    }
+
+    TestResult readSlot(int slot) {
+        ByteBuffer slotBuffer = slot(slot);
+        int length = slotBuffer.getInt(4);
+        if (length <= 0 || length > MAX_RECORD_SIZE) return null;
+        byte[] record = new byte[length];
+        slotBuffer.position(SLOT_HEADER_SIZE);
+        slotBuffer.get(record);
+        return TestResult.decode(record, 0, length);
+    }
+
+    /**
+     * Marks a test as deleted, its slot is not reused
+     */
+    public synchronized boolean delete(int user, long timestamp) throws IOException {
+        UserIndex userIndex = index.get(user);
+        if (userIndex == null) return false;
+        int position = userIndex.find(timestamp);
+        if (position < 0) return false;
+        TestResult deleted = listeners.isEmpty() ? null : readSlot(userIndex.slots[position]);
+        markDeleted(userIndex.slots[position]);
+        channel.force(false);
+        userIndex.remove(position);
+        if (deleted != null) {
+            for (Listener listener : listeners) listener.onDeleted(deleted);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes all tests of a user, oldest first, skipping corrupt records
+     */
+    public synchronized void scan(int user, Visitor visitor) {
+        UserIndex userIndex = index.get(user);
+        if (userIndex == null) return;
+        for (int position = 0; position < userIndex.size; position++) {
+            TestResult result = readSlot(userIndex.slots[position]);
+            if (result != null) visitor.visit(result);
+        }
+    }
+
+    /**
+     * @return all users with stored tests
+     */
+    public synchronized int[] users() {
+        int[] users = new int[index.size()];
+        int i = 0;
+        for (int user : index.keySet()) users[i++] = user;
+        Arrays.sort(users);
+        return users;
+    }
+}
@@ -0,0 +1,121 @@
+package org.woheller69.audiometry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only journal of the running test, so an interrupted test can be resumed.
+ * One line per event:
+ *   S action method interleaved user startMillis   - session started
+ *   P ear frequencyIndex level heard               - tone presented
+ *   D ear frequencyIndex threshold                 - threshold of a track found
+ * The state of each threshold search is restored by replaying its presentations.
+ */
+public class SessionJournal {
+    public static final String FILE_NAME = "TestSession";
+    public static final long MAX_AGE_MS = 60 * 60 * 1000;  //older sessions are not resumed
+
+    private final File file;
+
+    public static class Session {
+        public String action;
+        public String method;
+        public boolean interleaved;
+        public int user;
+        public long started;
+        final List<String[]> presentations = new ArrayList<>();
+    }
+
+    public SessionJournal(File dir) {
+        file = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Starts a new journal, replacing any previous session
+     */
+    public void start(String action, String method, boolean interleaved, int user, long started) {
+        write(String.format(Locale.US, "S %s %s %d %d %d\n", action, method, interleaved ? 1 : 0, user, started), false, true);
+    }
+
+    public void presentation(TestTrack track, double level, boolean heard) {
+        write(String.format(Locale.US, "P %d %d %s %d\n", track.ear, track.frequencyIndex, level, heard ? 1 : 0), true, false);
+    }
+
+    /**
+     * Checkpoint after a track is finished, synced to disk
+     */
+    public void finished(TestTrack track) {
+        write(String.format(Locale.US, "D %d %d %s\n", track.ear, track.frequencyIndex, track.getThreshold()), true, true);
+    }
+
+    private void write(String line, boolean append, boolean sync) {
+        try (FileOutputStream fos = new FileOutputStream(file, append)) {
+            fos.write(line.getBytes(StandardCharsets.US_ASCII));
+            if (sync) fos.getFD().sync();
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * @return the journaled session or null if there is none or it is unreadable.
+     * An incomplete last line from an interrupted write is ignored.
+     */
+    public Session read() {
+        if (!file.exists()) return null;
+        Session session = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields[0].equals("S") && fields.length == 6 && session == null) {
+                    session = new Session();
+                    session.action = fields[1];
+                    session.method = fields[2];
+                    session.interleaved = fields[3].equals("1");
+                    session.user = Integer.parseInt(fields[4]);
+                    session.started = Long.parseLong(fields[5]);
+                } else if (fields[0].equals("P") && fields.length == 5 && session != null) {
+                    session.presentations.add(fields);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Replays the journaled presentations into freshly created tracks
+     * @return false if the journal does not fit the tracks, e.g. because calibration has changed
+     */
+    public static boolean restore(Session session, List<TestTrack> tracks) {
+        try {
+            for (String[] fields : session.presentations) {
+                int ear = Integer.parseInt(fields[1]);
+                int frequencyIndex = Integer.parseInt(fields[2]);
+                double level = Double.parseDouble(fields[3]);
+                TestTrack track = null;
+                for (TestTrack t : tracks) {
+                    if (t.ear == ear && t.frequencyIndex == frequencyIndex) track = t;
+                }
+                if (track == null || track.isFinished() || Math.abs(track.nextLevel() - level) > 1e-6) return false;
+                track.record(fields[4].equals("1"));
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public void delete() {
+        file.delete();
+    }
+}
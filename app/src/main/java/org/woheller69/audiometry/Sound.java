@@ -94,6 +94,16 @@ public class Sound {
         audioTrack.write(generatedSnd, 0, generatedSnd.length, AudioTrack.WRITE_BLOCKING);
 
         // Set the volume and play the audio
+        setEar(audioTrack, ear);
+        audioTrack.play();
+        return audioTrack;
+    }
+
+    /**
+     * Routes a mono AudioTrack to one ear
+     * @param ear - right=0, left=1
+     */
+    public static void setEar(AudioTrack audioTrack, int ear) {
         if (ear == 0) {
             // 获取最大音量值
             float maxVolume = AudioTrack.getMaxVolume();
@@ -117,8 +127,6 @@ public class Sound {
                 audioTrack.setPlaybackParams(audioTrack.getPlaybackParams().setAudioFallbackMode(android.media.PlaybackParams.AUDIO_FALLBACK_MODE_MUTE));
             }
         }
-        audioTrack.play();
-        return audioTrack;
     }
 
     /**
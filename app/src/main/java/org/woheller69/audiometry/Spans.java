@@ -0,0 +1,152 @@
+package org.woheller69.audiometry;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named timing spans. Each span is an android.os.Trace section, visible in system traces, and its
+ * duration is kept in a ring buffer of the last CAPACITY spans for the percentiles of report().
+ * Usage, begin and end on the same thread:
+ *   try (Spans.Span span = Spans.begin("FileOperations.readTestData")) { ... }
+ * With trackFrames(), in debuggable builds, the total duration of each frame drawn is recorded as
+ * "Frame.<activity>".
+ */
+public class Spans {
+    static final int CAPACITY = 4096;
+
+    private static final String[] names = new String[CAPACITY];
+    private static final long[] durations = new long[CAPACITY];  // ns
+    private static int next = 0;
+    private static int count = 0;
+    private static boolean tracking = false;
+
+    public static class Span implements AutoCloseable {
+        private final String name;
+        private final long start;
+
+        Span(String name) {
+            this.name = name;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            long duration = System.nanoTime() - start;
+            Trace.endSection();
+            record(name, duration);
+        }
+    }
+
+    /**
+     * @param name - at most 127 characters, the limit of Trace sections
+     */
+    public static Span begin(String name) {
+        Trace.beginSection(name);
+        return new Span(name);
+    }
+
+    /**
+     * Records the frame durations of all activities created later, from Android 7.
+     * Only called in debuggable builds, a listener on every window costs time in each frame.
+     */
+    public static synchronized void trackFrames(Application application) {
+        if (tracking || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return;
+        tracking = true;
+        Handler handler = new Handler(Looper.getMainLooper());
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity created, Bundle savedInstanceState) {
+                trackFrames(created, handler);
+            }
+            @Override public void onActivityStarted(Activity started) {}
+            @Override public void onActivityResumed(Activity resumed) {}
+            @Override public void onActivityPaused(Activity paused) {}
+            @Override public void onActivityStopped(Activity stopped) {}
+            @Override public void onActivitySaveInstanceState(Activity saved, Bundle outState) {}
+            @Override public void onActivityDestroyed(Activity destroyed) {}
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static void trackFrames(Activity activity, Handler handler) {
+        String name = "Frame." + activity.getClass().getSimpleName();
+        activity.getWindow().addOnFrameMetricsAvailableListener(
+                (Window window, FrameMetrics metrics, int dropCount) -> record(name, metrics.getMetric(FrameMetrics.TOTAL_DURATION)), handler);
+    }
+
+    static synchronized void record(String name, long duration) {
+        names[next] = name;
+        durations[next] = duration;
+        next = (next + 1) % CAPACITY;
+        if (count < CAPACITY) count++;
+    }
+
+    public static synchronized void clear() {
+        Arrays.fill(names, null);
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * @return for each span name the number of recorded spans and p50, p95, p99 and max in ms
+     */
+    public static Map<String, double[]> statistics() {
+        Map<String, List<Long>> byName = new HashMap<>();
+        synchronized (Spans.class) {
+            for (int k = 0; k < count; k++) {
+                List<Long> list = byName.get(names[k]);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byName.put(names[k], list);
+                }
+                list.add(durations[k]);
+            }
+        }
+        Map<String, double[]> statistics = new TreeMap<>();
+        for (Map.Entry<String, List<Long>> entry : byName.entrySet()) {
+            long[] sorted = new long[entry.getValue().size()];
+            for (int k = 0; k < sorted.length; k++) sorted[k] = entry.getValue().get(k);
+            Arrays.sort(sorted);
+            statistics.put(entry.getKey(), new double[]{sorted.length,
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), sorted[sorted.length - 1] / 1e6});
+        }
+        return statistics;
+    }
+
+    /**
+     * Nearest-rank percentile in ms
+     */
+    private static double percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    /**
+     * @return the statistics as a text table, one line per span name
+     */
+    public static String report() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "%-36s %6s %9s %9s %9s %9s\n", "span", "n", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, double[]> entry : statistics().entrySet()) {
+            double[] s = entry.getValue();
+            text.append(String.format(Locale.ROOT, "%-36s %6d %9.2f %9.2f %9.2f %9.2f\n", entry.getKey(), (int) s[0], s[1], s[2], s[3], s[4]));
+        }
+        return text.toString();
+    }
+}
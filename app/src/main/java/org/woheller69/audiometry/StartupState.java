@@ -0,0 +1,106 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the main screen needs at launch: calibration presence, current user with the name of
+ * the profile and the gain. It is computed once on a background thread, so that launching does not
+ * wait for file reads, and kept in memory until invalidated. Changes of the calibration invalidate
+ * it, other changes such as the user or gain have to call invalidate().
+ * The load is traced as section "StartupState.load".
+ */
+public class StartupState {
+    public final boolean calibrated;
+    public final int user;
+    public final String profileName;  // null if the user has no profile
+    public final int gain;
+
+    public interface Listener {
+        /** Called on the main thread */
+        void onStartupState(StartupState state);
+    }
+
+    private static StartupState state;
+    private static int generation = 0;  // incremented by invalidate(), a load of an older generation is repeated
+    private static boolean loading = false;
+    private static final List<Listener> pending = new ArrayList<>();
+    private static final CalibrationRepository.Listener calibrationListener = StartupState::invalidate;
+
+    StartupState(boolean calibrated, int user, String profileName, int gain) {
+        this.calibrated = calibrated;
+        this.user = user;
+        this.profileName = profileName;
+        this.gain = gain;
+    }
+
+    /**
+     * @return the loaded state or null if it is not ready
+     */
+    public static synchronized StartupState peek() {
+        return state;
+    }
+
+    /**
+     * Calls the listener with the state, at once if it is loaded, otherwise when the load in the background has finished
+     */
+    public static synchronized void load(Context context, Listener listener) {
+        if (state != null) {
+            listener.onStartupState(state);
+            return;
+        }
+        pending.add(listener);
+        if (loading) return;
+        loading = true;
+        CalibrationRepository.addListener(calibrationListener);
+        Context appContext = context.getApplicationContext();
+        new Thread(() -> {
+            while (true) {
+                int loadedGeneration;
+                synchronized (StartupState.class) {
+                    loadedGeneration = generation;
+                }
+                StartupState loaded = compute(appContext);
+                synchronized (StartupState.class) {
+                    if (loadedGeneration != generation) continue;  //invalidated while loading
+                    loading = false;
+                    List<Listener> listeners = new ArrayList<>(pending);
+                    pending.clear();
+                    new Handler(Looper.getMainLooper()).post(() -> {
+                        synchronized (StartupState.class) {
+                            if (state == null && loadedGeneration == generation) state = loaded;
+                        }
+                        for (Listener l : listeners) l.onStartupState(loaded);
+                    });
+                    return;
+                }
+            }
+        }).start();
+    }
+
+    private static StartupState compute(Context context) {
+        try (Spans.Span span = Spans.begin("StartupState.load")) {
+            boolean calibrated = CalibrationRepository.get(context).calibrated;
+            SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
+            int user = prefManager.getInt("user",1);
+            ProfileStore.Profile profile = ProfileStore.get(context).getProfile(user);
+            int gain = FileOperations.readGain(context);
+            return new StartupState(calibrated, user, profile != null ? profile.name : null, gain);
+        }
+    }
+
+    /**
+     * Drops the loaded state, the next load() reads it again
+     */
+    public static synchronized void invalidate() {
+        state = null;
+        generation++;
+    }
+}
@@ -0,0 +1,24 @@
+package org.woheller69.audiometry;
+
+/**
+ * Time source for the test procedure, so the timing can be replaced by a VirtualClock
+ * when tests are simulated.
+ */
+public interface TestClock {
+
+    TestClock SYSTEM = new TestClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    long currentTimeMillis();
+
+    void sleep(long millis) throws InterruptedException;
+}
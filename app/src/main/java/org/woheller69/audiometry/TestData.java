@@ -2,8 +2,8 @@ package org.woheller69.audiometry;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Color;
 import android.os.Bundle;
+import android.util.LruCache;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
@@ -13,205 +13,185 @@ import android.view.WindowManager;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
-import com.github.mikephil.charting.charts.LineChart;
-import com.github.mikephil.charting.components.AxisBase;
-import com.github.mikephil.charting.components.Description;
-import com.github.mikephil.charting.components.Legend;
-import com.github.mikephil.charting.components.XAxis;
-import com.github.mikephil.charting.components.YAxis;
-import com.github.mikephil.charting.data.Entry;
-import com.github.mikephil.charting.data.LineData;
-import com.github.mikephil.charting.data.LineDataSet;
-import com.github.mikephil.charting.formatter.IAxisValueFormatter;
-
 import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import static org.woheller69.audiometry.PerformTest.testFrequencies;
 
 public class TestData extends AppCompatActivity {
+    private static final int CACHE_SIZE = 16;
     int index;
-    String[] allSavedTests;
-    double[][] testResults = new double[2][testFrequencies.length];
-    double[] calibrationArray = new double[testFrequencies.length];
-    String fileName;
-    private final float YMIN = -20f;
-    private final float YMAX = 100f;
+    long[] allSavedTests = new long[0];
+    double[][] testResults;
+    CalibrationRepository.Snapshot calibration;
+    long timestamp;
     private Context context;
-    private LineChart chart;
+    private AudiogramView chart;
+    private final float[] right = new float[testFrequencies.length];  //dB HL of the shown test
+    private final float[] left = new float[testFrequencies.length];
+    private ImageButton zoom;
+    private TextView title;
     private boolean zoomed = false;
-
-    public float scaleCbr(double cbr) {
-        return (float) (Math.log10(cbr/125)/Math.log10(2));
-    }
-
-    public float unScaleCbr(double cbr) {
-        double calcVal = Math.pow(2,cbr)*125;
-        return (float)(calcVal);
-    }
+    private final LruCache<Long, double[][]> cache = new LruCache<>(CACHE_SIZE);  //decoded results by timestamp
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final DateFormat timeFormat = DateFormat.getTimeInstance(DateFormat.SHORT);
+    private final DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.SHORT);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        context=this;
-        allSavedTests=TestLookup.getAllSavedTests(this);
+        context=getApplicationContext();
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
         getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
 
         setContentView(R.layout.activity_test_data);
         Intent intent = getIntent();
         index = intent.getIntExtra("Index",0);
-        fileName = allSavedTests[index];
+        title = (TextView) findViewById(R.id.test_title);
+        zoom = findViewById(R.id.zoom_button);
+        setupChart();
 
         ImageButton next = (ImageButton) findViewById(R.id.next);
         next.setOnClickListener(view -> {
-            index = (index - 1);
-            if (index < 0) index = 0;
-            fileName = allSavedTests[index];
-            zoomed = false;
-            draw();
+            if (allSavedTests.length == 0) return;
+            index = Math.max(index - 1, 0);
+            show();
         });
 
         ImageButton prev = (ImageButton) findViewById(R.id.prev);
         prev.setOnClickListener(view -> {
-            index = (index + 1);
-            if (index > allSavedTests.length-1) index = allSavedTests.length-1;
-            fileName = allSavedTests[index];
-            zoomed = false;
-            draw();
+            if (allSavedTests.length == 0) return;
+            index = Math.min(index + 1, allSavedTests.length-1);
+            show();
         });
 
-        draw();
-
-    }
-
-    private void draw() {
-        String[] names = fileName.split("-");
-        String time = DateFormat.getTimeInstance(DateFormat.SHORT).format(Long.parseLong(names[1])) + ", " + DateFormat.getDateInstance(DateFormat.SHORT).format(Long.parseLong(names[1]));
-
         ImageButton share = (ImageButton) findViewById(R.id.share_button);
         share.setOnClickListener(view -> {
-            String testdata = "Thresholds right\n";
+            if (testResults == null) return;
+            StringBuilder testdata = new StringBuilder("Thresholds right\n");
             for (int i=0; i<testFrequencies.length;i++){
-                testdata+=testFrequencies[i] + " Hz " + String.format("%.1f",(float) (testResults[0][i]-calibrationArray[i])) + " dBHL\n";
+                if (Double.isNaN(testResults[0][i])) continue;  //frequency not tested
+                testdata.append(testFrequencies[i]).append(" Hz ").append(String.format("%.1f",(float) (testResults[0][i]-calibration.get(i)))).append(" dBHL\n");
             }
-            testdata+="\nThresholds left\n";
+            testdata.append("\nThresholds left\n");
             for (int i=0; i<testFrequencies.length;i++){
-                testdata+=testFrequencies[i] + " Hz " + String.format("%.1f",(float) (testResults[1][i]-calibrationArray[i])) + " dBHL\n";
+                if (Double.isNaN(testResults[1][i])) continue;
+                testdata.append(testFrequencies[i]).append(" Hz ").append(String.format("%.1f",(float) (testResults[1][i]-calibration.get(i)))).append(" dBHL\n");
             }
-            testdata+="\n";
+            testdata.append("\n");
             Intent sharingIntent = new Intent(Intent.ACTION_SEND);
             sharingIntent.setType("text/plain");
-            sharingIntent.putExtra(Intent.EXTRA_TEXT, testdata);
+            sharingIntent.putExtra(Intent.EXTRA_TEXT, testdata.toString());
             startActivity(Intent.createChooser(sharingIntent, "Share in..."));
         });
 
-        ImageButton zoom = findViewById(R.id.zoom_button);
-        zoom.setImageDrawable(zoomed ? ContextCompat.getDrawable(this,R.drawable.ic_zoom_out_black_24dp) : ContextCompat.getDrawable(this,R.drawable.ic_zoom_in_black_24dp));
-        zoom.setOnClickListener(view -> {
-            if (!zoomed){
-                chart.getAxisLeft().resetAxisMaximum();
-                chart.getAxisLeft().resetAxisMinimum();
-                chart.getAxisRight().resetAxisMaximum();
-                chart.getAxisRight().resetAxisMinimum();
-                zoom.setImageDrawable(ContextCompat.getDrawable(this,R.drawable.ic_zoom_out_black_24dp));
-                zoomed = true;
-            } else {
-                chart.getAxisLeft().setAxisMinimum(YMIN);
-                chart.getAxisLeft().setAxisMaximum(YMAX);
-                chart.getAxisRight().setAxisMinimum(YMIN);
-                chart.getAxisRight().setAxisMaximum(YMAX);
-                zoom.setImageDrawable(ContextCompat.getDrawable(this,R.drawable.ic_zoom_in_black_24dp));
-                zoomed = false;
-            }
-            chart.notifyDataSetChanged();
-            chart.invalidate();
-        });
-
-        FileOperations fileOperations = new FileOperations();
-        testResults=fileOperations.readTestData(fileName, context);
-        calibrationArray=fileOperations.readCalibration(context);
+        zoom.setOnClickListener(view -> setZoomed(!zoomed));
 
         ImageButton delete = (ImageButton) findViewById(R.id.delete_button);
         delete.setOnClickListener(view -> {
-            fileOperations.deleteTestData(fileName,context);
-            allSavedTests=TestLookup.getAllSavedTests(this);
+            if (allSavedTests.length == 0) return;
+            long deleted = timestamp;
+            long[] tests = new long[allSavedTests.length - 1];
+            System.arraycopy(allSavedTests, 0, tests, 0, index);
+            System.arraycopy(allSavedTests, index + 1, tests, index, tests.length - index);
+            allSavedTests = tests;
+            cache.remove(deleted);
+            executor.execute(() -> new FileOperations().deleteTestData(deleted, context));
+            if (allSavedTests.length == 0) {  //last test deleted
+                gotoExport();
+                return;
+            }
             if (index > allSavedTests.length-1) index = allSavedTests.length-1;
-            fileName = allSavedTests[index];
-            zoomed = false;
-            draw();});
-
-        TextView title = (TextView) findViewById(R.id.test_title);
-        title.setText(time);
-
-        // Draw Graph
-        chart = (LineChart) findViewById(R.id.chart);
-        chart.setExtraTopOffset(10);
-        chart.setNoDataText("Whoops! No data was found. Try again!");
-        Description description = new Description();
-        description.setText(getResources().getString(R.string.chart_description));
-        description.setTextSize(15);
-        description.setTextColor(getResources().getColor(R.color.white,getTheme()));
-        chart.setDescription(description);
-
-        ArrayList<Entry> dataLeft = new ArrayList<Entry>();
-        for (int i = 0; i < testResults[1].length; i ++){
-            Entry dataPoint = new Entry( scaleCbr(testFrequencies[i]),(float) (testResults[1][i]-calibrationArray[i]) );
-            dataLeft.add(dataPoint);
+            show();
+        });
+
+        executor.execute(() -> {
+            long[] tests = TestLookup.getAllSavedTests(context);
+            runOnUiThread(() -> {
+                allSavedTests = tests;
+                if (allSavedTests.length == 0) {
+                    gotoExport();
+                    return;
+                }
+                index = Math.max(0, Math.min(index, allSavedTests.length-1));
+                show();
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();  //pending deletes are still carried out
+        super.onDestroy();
+    }
+
+    /**
+     * Static chart configuration, navigation only replaces the data
+     */
+    private void setupChart() {
+        chart = findViewById(R.id.chart);
+        chart.setDescription(getString(R.string.chart_description));
+        chart.setEars(new int[]{getResources().getColor(R.color.primary_dark,getTheme()), getResources().getColor(R.color.green,getTheme())},
+                new String[]{getString(R.string.right), getString(R.string.left)});
+        setZoomed(false);
+    }
+
+    private void setZoomed(boolean zoomed) {
+        this.zoomed = zoomed;
+        chart.setZoomed(zoomed);
+        zoom.setImageDrawable(ContextCompat.getDrawable(this, zoomed ? R.drawable.ic_zoom_out_black_24dp : R.drawable.ic_zoom_in_black_24dp));
+    }
+
+    /**
+     * Shows the test at index, from the cache or loaded in the background, and prefetches its neighbours
+     */
+    private void show() {
+        timestamp = allSavedTests[index];
+        title.setText(timeFormat.format(timestamp) + ", " + dateFormat.format(timestamp));
+        if (zoomed) setZoomed(false);
+        double[][] results = cache.get(timestamp);
+        if (results != null) {
+            draw(results);
+        } else {
+            long requested = timestamp;
+            testResults = null;
+            chart.clear();
+            executor.execute(() -> {
+                double[][] loaded = load(requested);
+                runOnUiThread(() -> {
+                    if (requested == timestamp) draw(loaded);
+                });
+            });
         }
-        LineDataSet setLeft = new LineDataSet(dataLeft, getString(R.string.left));
-        setLeft.setCircleColor(getResources().getColor(R.color.green,getTheme()));
-        setLeft.setColor(getResources().getColor(R.color.green,getTheme()));
-        setLeft.setValueTextColor(Color.WHITE);
-        setLeft.setValueTextSize(12);
-
-        ArrayList<Entry> dataRight = new ArrayList<Entry>();
-        for (int i = 0; i < testResults[0].length; i ++){
-            Entry dataPoint = new Entry( scaleCbr(testFrequencies[i]), (float)(testResults[0][i]-calibrationArray[i]));
-            dataRight.add(dataPoint);
+        for (int neighbour = index - 1; neighbour <= index + 1; neighbour += 2) {
+            if (neighbour < 0 || neighbour >= allSavedTests.length) continue;
+            long prefetch = allSavedTests[neighbour];
+            if (cache.get(prefetch) == null) executor.execute(() -> load(prefetch));
         }
-        LineDataSet setRight = new LineDataSet(dataRight, getString(R.string.right));
-        setRight.setCircleColor(getResources().getColor(R.color.primary_dark,getTheme()));
-        setRight.setColor(getResources().getColor(R.color.primary_dark,getTheme()));
-        setRight.setValueTextColor(Color.WHITE);
-        setRight.setValueTextSize(12);
-
-        LineData data = new LineData(setLeft,setRight);
-
-        XAxis xAxis = chart.getXAxis();
-        xAxis.setTextColor(Color.WHITE);
-        xAxis.setTextSize(15);
-        YAxis leftAxis = chart.getAxisLeft();
-        leftAxis.setAxisMinimum(YMIN);
-        leftAxis.setAxisMaximum(YMAX);
-        leftAxis.setTextSize(15);
-        leftAxis.setInverted(true);
-        leftAxis.setTextColor(Color.WHITE);
-        YAxis rightAxis = chart.getAxisRight();
-        rightAxis.setAxisMinimum(YMIN);
-        rightAxis.setAxisMaximum(YMAX);
-        rightAxis.setInverted(true);
-        rightAxis.setTextSize(15);
-        rightAxis.setTextColor(Color.WHITE);
-        Legend legend = chart.getLegend();
-        legend.setTextColor(Color.WHITE);
-        legend.setTextSize(15);
-
-        xAxis.setValueFormatter(new IAxisValueFormatter() {
-            @Override
-            public String getFormattedValue(float value, AxisBase axis) {
-                DecimalFormat mFormat;
-                mFormat = new DecimalFormat("##0.#"); // use one decimal.
-                    return mFormat.format(unScaleCbr(value));
-            }
-            @Override
-            public int getDecimalDigits() {
-                return 0;
-            }
-        });
+    }
 
-        chart.setData(data);
-        chart.invalidate(); // refresh
+    /**
+     * Decodes a test into the cache, called on the executor
+     */
+    private double[][] load(long timestamp) {
+        double[][] results = cache.get(timestamp);
+        if (results == null) {
+            results = new FileOperations().readTestData(timestamp, context);
+            cache.put(timestamp, results);
+        }
+        return results;
+    }
+
+    private void draw(double[][] results) {
+        try (Spans.Span span = Spans.begin("TestData.draw")) {
+            testResults = results;
+            calibration = CalibrationRepository.get(context);
+            for (int i = 0; i < testFrequencies.length; i++) {
+                right[i] = (float) (testResults[0][i] - calibration.get(i));  //NaN where not tested
+                left[i] = (float) (testResults[1][i] - calibration.get(i));
+            }
+            chart.setThresholds(right, left);
+        }
     }
 
 
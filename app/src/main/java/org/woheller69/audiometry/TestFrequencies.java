@@ -0,0 +1,11 @@
+package org.woheller69.audiometry;
+
+/**
+ * Frequencies of a test and their reference thresholds. Kept free of Android classes, so the
+ * simulation tools and tests on the JVM use the same values as PerformTest.
+ */
+public class TestFrequencies {
+    // 气导频率覆盖 125Hz~8000 Hz，骨导覆盖 250 Hz~4000 Hz
+    public static final int[] FREQUENCIES = {125, 250, 500, 1000, 2000, 3000, 4000, 6000, 8000};
+    public static final float[] CORRECTION_DBSPL_TO_DBHL = {19.7f,9.0f,2.0f,0f,-3.7f,-8.1f,-7.8f, 2.1f,10.2f}; //estimated from  ISO226:2003 hearing threshold. Taken from https://github.com/IoSR-Surrey/MatlabToolbox/blob/master/%2Biosr/%2Bauditory/iso226.m Corrected to value=0 @1000Hz
+}
@@ -3,143 +3,252 @@ package org.woheller69.audiometry;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Color;
-import android.graphics.Typeface;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.ContextMenu;
-import android.view.Gravity;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.Button;
-import android.widget.LinearLayout;
-import android.widget.ScrollView;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.FileProvider;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
 import java.text.DateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class TestLookup extends AppCompatActivity {
 
-    String[] allSavedTests;
+    long[] allSavedTests = new long[0];
+    private int user;
+    private int calibrationVersion;
+    private TestAdapter adapter;
+    private RecyclerView list;
+    private TextView noTestResults;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();  //loads and deletes in order
+    private ActivityResultLauncher<Intent> mImport;
+
     public void gotoTestData(View view, int index){
         Intent intent = new Intent(this, TestData.class);
         intent.putExtra("Index", index);
         startActivity(intent);
     }
 
-    // Create table with allSavedTests.length rows; each entry will be a pressable button.
-    // The button will send a packet of information to the display activity telling it what file to load
+    /**
+     * One row per saved test. Rows are only created for the visible part of the list and
+     * labels are formatted when a row is shown for the first time. Each row shows an audiogram
+     * thumbnail from ThumbnailCache, rendered in the background when it is not cached.
+     */
+    class TestAdapter extends RecyclerView.Adapter<TestAdapter.Holder> {
+        private final DateFormat timeFormat = DateFormat.getTimeInstance(DateFormat.SHORT);
+        private final DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.SHORT);
+        private final Map<Long, String> labels = new HashMap<>();
+        private final ThumbnailCache thumbnails = ThumbnailCache.get(TestLookup.this);
+        private final int thumbnailWidth = Math.round(96 * getResources().getDisplayMetrics().density);
+        private final int thumbnailHeight = Math.round(56 * getResources().getDisplayMetrics().density);
+        private final Drawable placeholder = new ColorDrawable(0);
+
+        class Holder extends RecyclerView.ViewHolder {
+            final Button button;
+            long timestamp;
+
+            Holder(Button button) {
+                super(button);
+                this.button = button;
+                button.setOnClickListener(view -> {
+                    int position = getBindingAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) gotoTestData(view, position);
+                });
+                registerForContextMenu(button);
+                button.setCompoundDrawablePadding(thumbnailWidth / 8);
+            }
+
+            void setThumbnail(Bitmap bitmap) {
+                Drawable drawable = bitmap != null ? new BitmapDrawable(getResources(), bitmap) : placeholder;
+                drawable.setBounds(0, 0, thumbnailWidth, thumbnailHeight);
+                button.setCompoundDrawablesRelative(drawable, null, null, null);
+            }
+        }
+
+        TestAdapter() {
+            setHasStableIds(true);
+        }
+
+        @NonNull
+        @Override
+        public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            return new Holder((Button) LayoutInflater.from(parent.getContext()).inflate(R.layout.item_test, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull Holder holder, int position) {
+            long timestamp = allSavedTests[position];
+            holder.button.setText(label(timestamp));
+            holder.timestamp = timestamp;
+            holder.setThumbnail(thumbnails.load(user, timestamp, thumbnailWidth, thumbnailHeight, (key, bitmap) -> {
+                if (holder.timestamp == timestamp && bitmap != null) holder.setThumbnail(bitmap);
+            }));
+        }
+
+        @Override
+        public int getItemCount() {
+            return allSavedTests.length;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return allSavedTests[position];
+        }
+
+        private String label(long timestamp) {
+            String label = labels.get(timestamp);
+            if (label == null) {
+                label = getString(R.string.test_at, timeFormat.format(timestamp) + ", " + dateFormat.format(timestamp));
+                labels.put(timestamp, label);
+            }
+            return label;
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
         getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
+        setContentView(R.layout.activity_test_lookup);
+        noTestResults = findViewById(R.id.no_test_results);
+        list = findViewById(R.id.test_list);
+        list.setLayoutManager(new LinearLayoutManager(this));
+        user = PreferenceManager.getDefaultSharedPreferences(this).getInt("user",1);
+        adapter = new TestAdapter();
+        list.setAdapter(adapter);
+
+        mImport = registerForActivityResult(
+                new ActivityResultContracts.StartActivityForResult(),
+                result -> {
+                    if (result.getData() != null && result.getData().getData() != null) importTests(result.getData().getData());
+                });
     }
     @Override
     protected void onResume() {
         super.onResume();
-        createView();
+        loadTests();
     }
 
-    private void createView() {
-        LinearLayout layout = new LinearLayout(this);
-        setContentView(layout);
-        layout.setBackgroundColor(getResources().getColor(R.color.background_grey,getTheme()));
-        layout.setOrientation(LinearLayout.VERTICAL);
-        layout.setPadding(0, 40, 16, 16);
-
-        TextView textview = new TextView(this);
-        textview.setText(R.string.title_activity_test_lookup);
-        textview.setTextColor(getResources().getColor(R.color.orange,getTheme()));
-        textview.setTextSize(30);
-        textview.setTypeface(null, Typeface.BOLD);
-        textview.setGravity(Gravity.CENTER);
-        layout.addView(textview, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
-
-        allSavedTests = getAllSavedTests(this);
-
-        if (allSavedTests.length < 1) {
-            TextView message = new TextView(this);
-            message.setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.WRAP_CONTENT));
-            message.setTextColor(getResources().getColor(R.color.white,getTheme()));
-            message.setTextSize(20);
-            message.setBackgroundColor(Color.parseColor("#424242"));
-            message.setPadding(40, 30, 16, 0);
-            message.setText(R.string.no_test_results);
-            layout.addView(message, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.WRAP_CONTENT));
-        } else {
-            ScrollView scrollview = new ScrollView(this);
-            scrollview.setLayoutParams(new ScrollView.LayoutParams(ScrollView.LayoutParams.MATCH_PARENT, ScrollView.LayoutParams.WRAP_CONTENT));
-            LinearLayout container = new LinearLayout(this);
-            container.setOrientation(LinearLayout.VERTICAL);
-
-            for (int i = 0; i < allSavedTests.length; i++) {
-
-                LinearLayout spacer = new LinearLayout(this);
-                spacer.setLayoutParams(new LinearLayout.LayoutParams(40, 40));
-                container.addView(spacer);
-
-                Button b = new Button(this);
-                b.setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.WRAP_CONTENT + 50));
-                b.setBackgroundResource(R.drawable.button_background);
-                b.setPadding(10, 20, 10, 20);
-                String[] names = allSavedTests[i].split("-");
-
-                String time = DateFormat.getTimeInstance(DateFormat.SHORT).format(Long.parseLong(names[1])) + ", " + DateFormat.getDateInstance(DateFormat.SHORT).format(Long.parseLong(names[1]));
-                String name = getString(R.string.test_at,time);
-                b.setText(name);
-                int finalI = i;
-                b.setId(finalI);
-                registerForContextMenu(b);
-                b.setOnClickListener(view -> gotoTestData(view, finalI));
-                container.addView(b, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+    /**
+     * Loads the index in the background, opening the log may take a while the first time.
+     * Only rows that changed since the last load are updated.
+     */
+    private void loadTests() {
+        Context context = getApplicationContext();
+        executor.execute(() -> {
+            long[] tests;
+            int version;
+            try (Spans.Span span = Spans.begin("TestLookup.loadTests")) {
+                tests = getAllSavedTests(context);
+                version = CalibrationRepository.get(context).getVersion();
             }
-            scrollview.addView(container);
-            layout.addView(scrollview);
+            runOnUiThread(() -> {
+                try (Spans.Span span = Spans.begin("TestLookup.updateList")) {
+                    if (version != calibrationVersion) {  //thumbnails of another calibration
+                        calibrationVersion = version;
+                        adapter.notifyItemRangeChanged(0, allSavedTests.length);
+                    }
+                    long[] old = allSavedTests;
+                    DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                        @Override
+                        public int getOldListSize() {
+                            return old.length;
+                        }
 
-        }
+                        @Override
+                        public int getNewListSize() {
+                            return tests.length;
+                        }
+
+                        @Override
+                        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                            return old[oldPosition] == tests[newPosition];
+                        }
+
+                        @Override
+                        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                            return true;  //a stored test does not change
+                        }
+                    });
+                    allSavedTests = tests;
+                    diff.dispatchUpdatesTo(adapter);
+                    showEmpty();
+                }
+            });
+        });
     }
 
-    public static String[] getAllSavedTests(Context context) {
+    private void showEmpty() {
+        noTestResults.setVisibility(allSavedTests.length < 1 ? View.VISIBLE : View.GONE);
+        list.setVisibility(allSavedTests.length < 1 ? View.GONE : View.VISIBLE);
+    }
+
+    /**
+     * @return timestamps of all tests of the current user, newest first
+     */
+    public static long[] getAllSavedTests(Context context) {
         SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
         int user = prefManager.getInt("user",1);
-
-        List<String> list = new ArrayList<String>(Arrays.asList(context.fileList()));
-        Collections.sort(list,Collections.reverseOrder());
-        for (Iterator<String> iterator = list.iterator(); iterator.hasNext();) {
-            String string = iterator.next();
-            if (!string.contains("TestResults")) iterator.remove();
-            else if (user == 1 && string.contains("U2")) iterator.remove();
-            else if (user == 2 && !string.contains("U2")) iterator.remove();
-        }
-        return list.toArray(new String[0]);
+        return ResultsLog.get(context).timestamps(user);
     }
 
     @Override
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo menuInfo){
         super.onCreateContextMenu(menu, v, menuInfo);
-        menu.add(0, v.getId(), 0, getString(R.string.delete));
+        int position = list.getChildAdapterPosition(v);
+        if (position != RecyclerView.NO_POSITION) menu.add(0, position, 0, getString(R.string.delete));
     }
 
     @Override
     public boolean onContextItemSelected(MenuItem item){
-        FileOperations fileOperations = new FileOperations();
-        fileOperations.deleteTestData(allSavedTests[item.getItemId()],this);
-        createView();  //recreate View
+        int position = item.getItemId();
+        if (position >= allSavedTests.length) return true;
+        long timestamp = allSavedTests[position];
+        long[] tests = new long[allSavedTests.length - 1];
+        System.arraycopy(allSavedTests, 0, tests, 0, position);
+        System.arraycopy(allSavedTests, position + 1, tests, position, tests.length - position);
+        allSavedTests = tests;
+        adapter.notifyItemRemoved(position);
+        showEmpty();
+        Context context = getApplicationContext();
+        executor.execute(() -> new FileOperations().deleteTestData(timestamp, context));
         return true;
     }
 
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();  //pending deletes are still carried out
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         
@@ -154,8 +263,67 @@ public class TestLookup extends AppCompatActivity {
         // automatically handle clicks on the Home/Up button, so long
         // as you specify a parent activity in AndroidManifest.xml.
         int id = item.getItemId();
-
+        if (id == R.id.trend) {
+            startActivity(new Intent(this, TrendActivity.class));
+            return true;
+        } else if (id == R.id.export) {
+            chooseExportFormat();
+            return true;
+        } else if (id == R.id.import_tests) {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("*/*");  //CSV and JSON Lines files have no reliable MIME type
+            mImport.launch(intent);
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    private void chooseExportFormat() {
+        String[] formats = {Exporter.CSV, Exporter.JSONL, Exporter.BINARY};
+        String[] names = {getString(R.string.export_csv), getString(R.string.export_jsonl), getString(R.string.export_binary)};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.export);
+        builder.setItems(names, (dialog, which) -> export(formats[which]));
+        builder.setNegativeButton(R.string.dialog_NO_button, (dialog, whichButton) -> dialog.cancel());
+        builder.show();
+    }
+
+    /**
+     * Exports the tests of all users in the background and shares the file
+     */
+    private void export(String format) {
+        Context context = getApplicationContext();
+        File file = Exporter.file(context, format);
+        ProgressTask.run(this, R.string.export_progress, R.string.export_done, R.string.export_cancelled,
+                (cancel, progress) -> new Exporter(ResultsLog.get(context), ProfileStore.get(context), CalibrationRepository.get(context))
+                        .export(file, format, cancel, progress),
+                done -> {
+                    if (!done) return;
+                    Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", file);
+                    Intent sharingIntent = new Intent(Intent.ACTION_SEND);
+                    sharingIntent.setType(format.equals(Exporter.CSV) ? "text/csv" : format.equals(Exporter.JSONL) ? "application/x-ndjson" : "application/octet-stream");
+                    sharingIntent.putExtra(Intent.EXTRA_STREAM, uri);
+                    sharingIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    startActivity(Intent.createChooser(sharingIntent, "Share in..."));
+                });
+    }
+
+    /**
+     * Merges the tests of a CSV or JSON Lines file in the background
+     */
+    private void importTests(Uri uri) {
+        Context context = getApplicationContext();
+        int user = PreferenceManager.getDefaultSharedPreferences(context).getInt("user",1);
+        Importer[] importer = {null};  //opened in the background, the first ResultsLog.get may migrate old files
+        ProgressTask.run(this, R.string.import_progress, 0, R.string.import_cancelled,
+                (cancel, progress) -> {
+                    importer[0] = new Importer(ResultsLog.get(context), ProfileStore.get(context), CalibrationRepository.get(context), user);
+                    return importer[0].importFrom(context, uri, cancel, progress);
+                },
+                done -> {  //ProgressTask has shown import_cancelled or the error otherwise
+                    if (done) Toast.makeText(this, getString(R.string.import_done, importer[0].getImported(), importer[0].getDuplicates(), importer[0].getInvalid()), Toast.LENGTH_LONG).show();
+                    loadTests();  //completed batches stay imported
+                });
+    }
 }
@@ -0,0 +1,192 @@
+package org.woheller69.audiometry;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * One stored test in a self-describing binary record (big-endian):
+ *   int    magic "hEAR"
+ *   short  version
+ *   short  reserved
+ *   int    user
+ *   long   timestamp in ms
+ *   byte   ear mask (1=right, 2=left)
+ *   byte   reserved
+ *   short  number of frequencies n
+ *   int[n] frequencies in Hz
+ *   for each ear in the mask (right first)
+ *     double[n] thresholds in dB, short[n] presentations, byte[n] flags
+ *   int    CRC32 of all preceding bytes
+ * Version 1 stored the threshold, presentations and flags of each point together, it is still read.
+ * The columns of version 2 are copied in bulk through buffer views.
+ * Files written before this format contain only the right and left thresholds as
+ * 2*n doubles for PerformTest.testFrequencies, they are read by decodeLegacy().
+ */
+public class TestResult {
+    public static final int MAGIC = 0x68454152;  // "hEAR"
+    public static final short VERSION = 2;
+    static final short VERSION_INTERLEAVED = 1;
+    public static final int EAR_RIGHT = 1;
+    public static final int EAR_LEFT = 2;
+    public static final int FLAG_NO_RESPONSE = 1;  // not heard at the maximum level
+    public static final int FLAG_FLOOR = 2;        // heard at the minimum level
+    private static final int HEADER_SIZE = 24;
+    private static final int POINT_SIZE = 11;
+
+    public final int user;
+    public final long timestamp;
+    public final int[] frequencies;
+    public final int earMask;
+    public final double[][] thresholds;  //right=0, left=1
+    public final int[][] presentations;
+    public final int[][] flags;
+
+    public TestResult(int user, long timestamp, int[] frequencies, int earMask, double[][] thresholds, int[][] presentations, int[][] flags) {
+        this.user = user;
+        this.timestamp = timestamp;
+        this.frequencies = frequencies;
+        this.earMask = earMask;
+        this.thresholds = thresholds;
+        this.presentations = presentations;
+        this.flags = flags;
+    }
+
+    /**
+     * Creates a result for both ears and derives the flags from the thresholds
+     */
+    public static TestResult of(int user, long timestamp, int[] frequencies, double[] thresholds_right, double[] thresholds_left, int[][] presentations) {
+        double[][] thresholds = {thresholds_right.clone(), thresholds_left.clone()};
+        int[][] p = presentations != null ? presentations : new int[2][frequencies.length];
+        return new TestResult(user, timestamp, frequencies, EAR_RIGHT | EAR_LEFT, thresholds, p, flags(thresholds));
+    }
+
+    /**
+     * @param thresholds - right=0, left=1, raw levels as produced by ThresholdStrategy
+     * @return the flags of each point, FLAG_NO_RESPONSE near MAX_LEVEL and FLAG_FLOOR at MIN_LEVEL
+     */
+    public static int[][] flags(double[][] thresholds) {
+        int[][] flags = new int[2][thresholds[0].length];
+        for (int s = 0; s < 2; s++) {
+            for (int i = 0; i < thresholds[s].length; i++) {
+                if (thresholds[s][i] >= ThresholdStrategy.MAX_LEVEL - 1) flags[s][i] |= FLAG_NO_RESPONSE;
+                if (thresholds[s][i] <= ThresholdStrategy.MIN_LEVEL) flags[s][i] |= FLAG_FLOOR;
+            }
+        }
+        return flags;
+    }
+
+    public boolean hasEar(int ear) {
+        return (earMask & (ear == 0 ? EAR_RIGHT : EAR_LEFT)) != 0;
+    }
+
+    public int encodedSize() {
+        return HEADER_SIZE + 4 * frequencies.length + Integer.bitCount(earMask) * frequencies.length * POINT_SIZE + 4;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(user);
+        buffer.putLong(timestamp);
+        buffer.put((byte) earMask);
+        buffer.put((byte) 0);
+        int n = frequencies.length;
+        buffer.putShort((short) n);
+        buffer.asIntBuffer().put(frequencies);
+        buffer.position(buffer.position() + 4 * n);
+        for (int s = 0; s < 2; s++) {
+            if (!hasEar(s)) continue;
+            buffer.asDoubleBuffer().put(thresholds[s], 0, n);
+            buffer.position(buffer.position() + 8 * n);
+            for (int i = 0; i < n; i++) buffer.putShort((short) presentations[s][i]);
+            for (int i = 0; i < n; i++) buffer.put((byte) flags[s][i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    public static boolean isRecord(byte[] data, int length) {
+        return length >= 4 && ByteBuffer.wrap(data).getInt(0) == MAGIC;
+    }
+
+    /**
+     * @return the decoded record or null if it is truncated, corrupt or of an unknown version
+     */
+    public static TestResult decode(byte[] data, int offset, int length) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            if (buffer.getInt() != MAGIC) return null;
+            short version = buffer.getShort();
+            if (version != VERSION && version != VERSION_INTERLEAVED) return null;
+            buffer.getShort();
+            int user = buffer.getInt();
+            long timestamp = buffer.getLong();
+            int earMask = buffer.get();
+            buffer.get();
+            int n = buffer.getShort();
+            int[] frequencies = new int[n];
+            buffer.asIntBuffer().get(frequencies);
+            buffer.position(buffer.position() + 4 * n);
+            double[][] thresholds = new double[2][n];
+            int[][] presentations = new int[2][n];
+            int[][] flags = new int[2][n];
+            for (int s = 0; s < 2; s++) {
+                if ((earMask & (s == 0 ? EAR_RIGHT : EAR_LEFT)) == 0) continue;
+                if (version == VERSION_INTERLEAVED) {
+                    for (int i = 0; i < n; i++) {
+                        thresholds[s][i] = buffer.getDouble();
+                        presentations[s][i] = buffer.getShort();
+                        flags[s][i] = buffer.get();
+                    }
+                } else {
+                    buffer.asDoubleBuffer().get(thresholds[s]);
+                    buffer.position(buffer.position() + 8 * n);
+                    for (int i = 0; i < n; i++) presentations[s][i] = buffer.getShort();
+                    for (int i = 0; i < n; i++) flags[s][i] = buffer.get();
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, buffer.position() - offset);
+            if (buffer.getInt() != (int) crc.getValue()) return null;
+            return new TestResult(user, timestamp, frequencies, earMask, thresholds, presentations, flags);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a file written before the versioned format. Thresholds missing in a short file are NaN.
+     */
+    public static TestResult decodeLegacy(byte[] data, int length, int user, long timestamp, int[] frequencies) {
+        DoubleBuffer values = ByteBuffer.wrap(data, 0, length).asDoubleBuffer();
+        double[][] thresholds = new double[2][frequencies.length];
+        for (int s = 0; s < 2; s++) {
+            int available = Math.min(frequencies.length, values.remaining());
+            values.get(thresholds[s], 0, available);
+            Arrays.fill(thresholds[s], available, frequencies.length, Double.NaN);
+        }
+        return of(user, timestamp, frequencies, thresholds[0], thresholds[1], null);
+    }
+
+    /**
+     * Thresholds of one ear for the given frequencies, NaN where this result has no value
+     */
+    public double[] thresholdsFor(int ear, int[] frequencies) {
+        double[] result = new double[frequencies.length];
+        for (int k = 0; k < frequencies.length; k++) {
+            result[k] = Double.NaN;
+            if (!hasEar(ear)) continue;
+            for (int i = 0; i < this.frequencies.length; i++) {
+                if (this.frequencies[i] == frequencies[k]) result[k] = thresholds[ear][i];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,54 @@
+package org.woheller69.audiometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Decides which track (ear and frequency) is tested next.
+ * Sequential mode finishes one track after the other in the given order. Interleaved mode picks
+ * a random open track for every presentation and avoids presenting the same track twice in a
+ * row, so the listener cannot anticipate the next tone.
+ */
+public class TestSequencer {
+    private final List<TestTrack> tracks;
+    private final boolean interleaved;
+    private final List<TestTrack> open = new ArrayList<>();
+    private TestTrack last;
+
+    public TestSequencer(List<TestTrack> tracks, boolean interleaved) {
+        this.tracks = tracks;
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * @return next track to present or null if all tracks are finished
+     */
+    public TestTrack next(Random random) {
+        open.clear();
+        for (TestTrack track : tracks) {
+            if (track.isFinished()) continue;
+            if (!interleaved) return track;
+            open.add(track);
+        }
+        if (open.isEmpty()) return null;
+        if (open.size() > 1) open.remove(last);
+        last = open.get(random.nextInt(open.size()));
+        return last;
+    }
+
+    public boolean isFinished() {
+        for (TestTrack track : tracks) {
+            if (!track.isFinished()) return false;
+        }
+        return true;
+    }
+
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
+    public List<TestTrack> getTracks() {
+        return tracks;
+    }
+}
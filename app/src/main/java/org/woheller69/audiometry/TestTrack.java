@@ -0,0 +1,55 @@
+package org.woheller69.audiometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Threshold search for one ear and frequency. Keeps all presentations so the state of the
+ * search can be restored by replaying them into a new strategy.
+ */
+public class TestTrack {
+    public final int ear;  //right=0, left=1
+    public final int frequencyIndex;
+    private final ThresholdStrategy strategy;
+    private final List<Double> levels = new ArrayList<>();
+    private final List<Boolean> responses = new ArrayList<>();
+
+    public TestTrack(int ear, int frequencyIndex, ThresholdStrategy strategy) {
+        this.ear = ear;
+        this.frequencyIndex = frequencyIndex;
+        this.strategy = strategy;
+    }
+
+    public double nextLevel() {
+        return strategy.nextLevel();
+    }
+
+    /**
+     * Reports the response to a tone presented at the level returned by nextLevel()
+     */
+    public void record(boolean heard) {
+        levels.add(strategy.nextLevel());
+        responses.add(heard);
+        strategy.onResponse(heard);
+    }
+
+    public boolean isFinished() {
+        return strategy.isFinished();
+    }
+
+    public double getThreshold() {
+        return strategy.getThreshold();
+    }
+
+    public int getPresentations() {
+        return strategy.getPresentations();
+    }
+
+    public double getLevel(int presentation) {
+        return levels.get(presentation);
+    }
+
+    public boolean getResponse(int presentation) {
+        return responses.get(presentation);
+    }
+}
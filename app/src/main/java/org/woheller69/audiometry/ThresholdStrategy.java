@@ -0,0 +1,54 @@
+package org.woheller69.audiometry;
+
+/**
+ * Adaptive procedure that decides at which level the next tone is presented and when
+ * the threshold for one frequency and ear has been found.
+ * Levels are in dB relative to an amplitude of 1, i.e. 20*log10(amplitude), the same unit
+ * PerformTest stores as threshold.
+ */
+public interface ThresholdStrategy {
+
+    String HUGHSON_WESTLAKE = "HughsonWestlake";
+    String BAYESIAN = "Bayesian";
+    String BISECTION = "Bisection";
+    String DEFAULT = HUGHSON_WESTLAKE;
+
+    /** Lowest level that can be presented (amplitude 1) */
+    double MIN_LEVEL = 0;
+    /** Highest level that can be presented (full scale amplitude) */
+    double MAX_LEVEL = 20 * Math.log10(32767);
+
+    /**
+     * @return level of the next presentation in dB
+     */
+    double nextLevel();
+
+    /**
+     * Reports the response to the tone presented at the level last returned by nextLevel()
+     * @param heard - true if the listener responded
+     */
+    void onResponse(boolean heard);
+
+    boolean isFinished();
+
+    /**
+     * @return estimated threshold in dB, only meaningful once isFinished() returns true
+     */
+    double getThreshold();
+
+    /**
+     * @return number of responses reported so far
+     */
+    int getPresentations();
+
+    /**
+     * Creates a strategy by name
+     * @param method - one of HUGHSON_WESTLAKE, BAYESIAN, BISECTION
+     * @param startLevel - expected threshold or starting level in dB
+     */
+    static ThresholdStrategy create(String method, double startLevel) {
+        if (BAYESIAN.equals(method)) return new BayesianStrategy(startLevel);
+        else if (BISECTION.equals(method)) return new BisectionStrategy();
+        else return new HughsonWestlakeStrategy(startLevel);
+    }
+}
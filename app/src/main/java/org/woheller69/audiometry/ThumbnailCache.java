@@ -0,0 +1,148 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Audiogram thumbnails of stored tests for the test list. A thumbnail is rendered once by
+ * AudiogramRenderer on a background thread and kept in a memory LRU cache and as PNG in a
+ * directory of the cache directory, trimmed to DISK_SIZE by last use.
+ * The key is user, timestamp and calibration version, so a new calibration renders new thumbnails.
+ */
+public class ThumbnailCache {
+    static final String DIR = "thumbnails";
+    static final int MEMORY_SIZE = 4 * 1024 * 1024;  // bytes
+    static final long DISK_SIZE = 4 * 1024 * 1024;   // bytes
+
+    public interface Callback {
+        /** Called on the main thread, bitmap is null if the test cannot be read */
+        void onThumbnail(String key, Bitmap bitmap);
+    }
+
+    private static ThumbnailCache instance;
+
+    private final File dir;
+    private final Context context;
+    private final LruCache<String, Bitmap> memory = new LruCache<String, Bitmap>(MEMORY_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private AudiogramRenderer renderer;  //used on the executor only
+    private long diskUsed = -1;          //unknown until the first write
+
+    public static synchronized ThumbnailCache get(Context context) {
+        if (instance == null) instance = new ThumbnailCache(context.getApplicationContext());
+        return instance;
+    }
+
+    private ThumbnailCache(Context context) {
+        this.context = context;
+        dir = new File(context.getCacheDir(), DIR);
+    }
+
+    public static String key(int user, long timestamp, CalibrationRepository.Snapshot calibration) {
+        return user + "_" + timestamp + "_" + Integer.toHexString(calibration.getVersion());
+    }
+
+    /**
+     * Returns the thumbnail if it is in memory, otherwise reads it from disk or renders it in the background
+     * @param width, height - size in pixels, the same for all calls
+     * @return the thumbnail or null if the callback will be called
+     */
+    public Bitmap load(int user, long timestamp, int width, int height, Callback callback) {
+        CalibrationRepository.Snapshot calibration = CalibrationRepository.get(context);
+        String key = key(user, timestamp, calibration);
+        Bitmap cached = memory.get(key);
+        if (cached != null) return cached;
+        executor.execute(() -> {
+            Bitmap bitmap = memory.get(key);
+            if (bitmap == null) {
+                File file = new File(dir, key + ".png");
+                if (file.exists()) {
+                    bitmap = BitmapFactory.decodeFile(file.getPath());
+                    file.setLastModified(System.currentTimeMillis());
+                }
+                if (bitmap == null) {
+                    try (Spans.Span span = Spans.begin("ThumbnailCache.render")) {
+                        bitmap = render(user, timestamp, width, height, calibration);
+                    }
+                    if (bitmap != null) write(file, bitmap);
+                }
+                if (bitmap != null) memory.put(key, bitmap);
+            }
+            Bitmap result = bitmap;
+            handler.post(() -> callback.onThumbnail(key, result));
+        });
+        return null;
+    }
+
+    private Bitmap render(int user, long timestamp, int width, int height, CalibrationRepository.Snapshot calibration) {
+        TestResult result = ResultsLog.get(context).read(user, timestamp);
+        if (result == null) return null;
+        if (renderer == null) {
+            renderer = new AudiogramRenderer(width, height,
+                    context.getResources().getColor(R.color.white, context.getTheme()),
+                    context.getResources().getColor(R.color.grey, context.getTheme()),
+                    new int[]{context.getResources().getColor(R.color.primary_dark, context.getTheme()),
+                            context.getResources().getColor(R.color.green, context.getTheme())});
+        }
+        double[][] thresholds = {result.thresholdsFor(0, testFrequencies), result.thresholdsFor(1, testFrequencies)};
+        return renderer.render(thresholds, calibration);
+    }
+
+    private void write(File file, Bitmap bitmap) {
+        if (!dir.isDirectory() && !dir.mkdirs()) return;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            System.out.println (e.toString());
+            file.delete();
+            return;
+        }
+        if (diskUsed < 0) {
+            diskUsed = 0;
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) diskUsed += f.length();
+        } else {
+            diskUsed += file.length();
+        }
+        if (diskUsed > DISK_SIZE) trim();
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is at 3/4 of DISK_SIZE
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (diskUsed <= DISK_SIZE * 3 / 4) break;
+            long length = f.length();
+            if (f.delete()) diskUsed -= length;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.woheller69.audiometry;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+
+/**
+ * Plays pure tones through one AudioTrack in MODE_STREAM.
+ * A render thread synthesizes the tone in small blocks, so changes of frequency, level, ear and
+ * gate are heard within one block. Level changes are ramped across a block, the gate fades in and
+ * out with the same cosine ramp as Sound.genTone, and the ear is switched while the tone is faded
+ * out. The routing of setStereoVolume applies at once, also to samples still queued in the
+ * AudioTrack, so before switching the buffer is drained with silence and the fade out of the old
+ * ear is never heard in the new one. Nothing is allocated while playing.
+ */
+public class ToneStreamer {
+    private static final int BLOCK_SIZE = 441;  //10 ms at 44100 Hz
+
+    private final int sampleRate;
+    private final float[] block = new float[BLOCK_SIZE];
+    private final float[] fade;
+    private final AudioTrack audioTrack;
+    private Thread renderThread;
+    private volatile boolean running = false;
+
+    private volatile double phaseIncrement;
+    private volatile double amplitude;  //0..1
+    private volatile int ear;
+    private volatile boolean gate = false;
+
+    // state of the render thread
+    private double phase = 0;
+    private double currentAmplitude = 0;
+    private int fadePosition = 0;
+    private int currentEar = -1;
+    private int drainBlocks = -1;  //silent blocks still to write before the ear is switched, -1 if not draining
+
+    /**
+     * @param fadeSamples - length of fade in and fade out
+     */
+    public ToneStreamer(int sampleRate, int fadeSamples) {
+        this.sampleRate = sampleRate;
+        fade = new float[Math.max(1, fadeSamples) + 1];
+        for (int i = 0; i < fade.length; i++) {
+            fade[i] = 0.5f * (1.0f - (float) Math.cos(Math.PI * i / (fade.length - 1)));
+        }
+
+        AudioAttributes audioAttributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build();
+        AudioFormat audioFormat = new AudioFormat.Builder()
+                .setSampleRate(sampleRate)
+                .setEncoding(AudioFormat.ENCODING_PCM_FLOAT)
+                .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                .build();
+        int bufferSizeInBytes = Math.max(AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_FLOAT),
+                2 * BLOCK_SIZE * 4);  // 4 bytes per float
+        audioTrack = new AudioTrack(audioAttributes, audioFormat, bufferSizeInBytes, AudioTrack.MODE_STREAM, 0);
+    }
+
+    /**
+     * Sets the tone, applied within one block
+     * @param volume - amplitude 0..32767 as used by Sound.genTone
+     */
+    public void setTone(int frequency, double volume, int ear) {
+        phaseIncrement = 2 * Math.PI * frequency / sampleRate;
+        amplitude = Math.min(1.0, volume / 32768.0);
+        this.ear = ear;
+    }
+
+    /**
+     * Fades the tone in or out
+     */
+    public void setGate(boolean on) {
+        gate = on;
+    }
+
+    public void start() {
+        running = true;
+        audioTrack.play();
+        renderThread = new Thread(() -> {
+            while (running) {
+                render();
+                audioTrack.write(block, 0, BLOCK_SIZE, AudioTrack.WRITE_BLOCKING);
+            }
+        });
+        renderThread.start();
+    }
+
+    public void release() {
+        running = false;
+        if (renderThread != null) {
+            try {
+                renderThread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        audioTrack.stop();
+        audioTrack.release();
+    }
+
+    private void render() {
+        int targetEar = ear;
+        if (currentEar == targetEar) {
+            drainBlocks = -1;
+        } else if (fadePosition == 0) {  //switch ear only while silent
+            if (drainBlocks < 0) drainBlocks = currentEar < 0 ? 0 : (audioTrack.getBufferSizeInFrames() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            if (drainBlocks == 0) {  //all blocks of the old ear have been played
+                Sound.setEar(audioTrack, targetEar);
+                currentEar = targetEar;
+                drainBlocks = -1;
+            } else {
+                drainBlocks--;  //this block is silent
+            }
+        }
+        boolean on = gate && currentEar == targetEar;
+        double increment = phaseIncrement;
+        double startAmplitude = currentAmplitude;
+        double deltaAmplitude = (amplitude - startAmplitude) / BLOCK_SIZE;
+        int lastFade = fade.length - 1;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (on && fadePosition < lastFade) fadePosition++;
+            else if (!on && fadePosition > 0) fadePosition--;
+            block[i] = (float) (Math.sin(phase) * (startAmplitude + deltaAmplitude * (i + 1))) * fade[fadePosition];
+            phase += increment;
+            if (phase > 2 * Math.PI) phase -= 2 * Math.PI;
+        }
+        currentAmplitude = startAmplitude + deltaAmplitude * BLOCK_SIZE;
+    }
+}
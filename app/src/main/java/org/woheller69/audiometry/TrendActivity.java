@@ -0,0 +1,187 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.view.MenuItem;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.PreferenceManager;
+
+import com.github.mikephil.charting.charts.LineChart;
+import com.github.mikephil.charting.components.AxisBase;
+import com.github.mikephil.charting.components.Description;
+import com.github.mikephil.charting.components.Legend;
+import com.github.mikephil.charting.components.XAxis;
+import com.github.mikephil.charting.components.YAxis;
+import com.github.mikephil.charting.data.Entry;
+import com.github.mikephil.charting.data.LineData;
+import com.github.mikephil.charting.data.LineDataSet;
+import com.github.mikephil.charting.formatter.IAxisValueFormatter;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Hearing over time for the current user: PTA of each test with a moving average and the
+ * change per year at each frequency. Values come from the TrendAggregator of the user,
+ * which is built once and then updated with each stored or deleted test.
+ */
+public class TrendActivity extends AppCompatActivity {
+    private static final int WINDOW = 5;  // tests in the moving average
+    private static final double DAY_MS = 24 * 3600 * 1000;
+    private final float YMIN = -20f;
+    private final float YMAX = 100f;
+    private LineChart chart;
+    private TextView slopes;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private int generation = 0;  // incremented by each onResume(), results of an older one are dropped
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+        getWindow().setStatusBarColor(getResources().getColor(R.color.primary_dark,getTheme()));
+        setContentView(R.layout.activity_trend);
+        slopes = findViewById(R.id.trend_slopes);
+        chart = findViewById(R.id.trend_chart);
+        chart.setExtraTopOffset(10);
+        chart.setNoDataText(getString(R.string.trend_no_data));
+        Description description = new Description();
+        description.setText("");
+        chart.setDescription(description);
+
+        DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.SHORT);
+        XAxis xAxis = chart.getXAxis();
+        xAxis.setTextColor(Color.WHITE);
+        xAxis.setTextSize(12);
+        xAxis.setLabelCount(4);
+        xAxis.setValueFormatter(new IAxisValueFormatter() {
+            @Override
+            public String getFormattedValue(float value, AxisBase axis) {
+                return dateFormat.format(TrendAggregator.REFERENCE_MS + (long) (value * DAY_MS));
+            }
+            @Override
+            public int getDecimalDigits() {
+                return 0;
+            }
+        });
+        for (YAxis axis : new YAxis[]{chart.getAxisLeft(), chart.getAxisRight()}) {
+            axis.setAxisMinimum(YMIN);
+            axis.setAxisMaximum(YMAX);
+            axis.setInverted(true);
+            axis.setTextSize(15);
+            axis.setTextColor(Color.WHITE);
+        }
+        Legend legend = chart.getLegend();
+        legend.setTextColor(Color.WHITE);
+        legend.setTextSize(12);
+        legend.setWordWrapEnabled(true);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        Context context = getApplicationContext();
+        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(context);
+        int user = prefManager.getInt("user",1);
+        int loadGeneration = ++generation;
+        executor.execute(() -> {  //the first call reads all tests of the user
+            TrendAggregator aggregator = TrendAggregator.get(context, user);
+            CalibrationRepository.Snapshot calibration = CalibrationRepository.get(context);
+            LineData data;
+            String text;
+            try (Spans.Span span = Spans.begin("TrendActivity.createData")) {
+                synchronized (aggregator) {
+                    data = createData(aggregator, calibration);
+                    text = createSlopes(aggregator);
+                }
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed() || loadGeneration != generation) return;
+                chart.setData(data);
+                chart.invalidate();
+                slopes.setText(text);
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        executor.shutdown();  //no interrupt, it could close a channel of the shared log
+        super.onDestroy();
+    }
+
+    /**
+     * @return PTA in dB HL of each test and its moving average, or null with fewer than two tests
+     */
+    private LineData createData(TrendAggregator aggregator, CalibrationRepository.Snapshot calibration) {
+        if (aggregator.size() < 2) return null;
+        double offset = 0;  //calibration is a constant offset per frequency, so the PTA shifts by its mean
+        for (int frequency : TrendAggregator.PTA_FREQUENCIES) {
+            for (int i = 0; i < testFrequencies.length; i++) {
+                if (testFrequencies[i] == frequency) offset += calibration.get(i) / TrendAggregator.PTA_FREQUENCIES.length;
+            }
+        }
+        LineData data = new LineData();
+        String[] labels = {getString(R.string.right), getString(R.string.left)};
+        int[] colors = {getResources().getColor(R.color.primary_dark,getTheme()), getResources().getColor(R.color.green,getTheme())};
+        for (int s = 0; s < 2; s++) {
+            ArrayList<Entry> points = new ArrayList<>();
+            ArrayList<Entry> average = new ArrayList<>();
+            for (int k = 0; k < aggregator.size(); k++) {
+                float x = (float) ((aggregator.getTimestamp(k) - TrendAggregator.REFERENCE_MS) / DAY_MS);
+                double pta = aggregator.getPta(s, k);
+                if (Double.isNaN(pta)) continue;
+                points.add(new Entry(x, (float) (pta - offset)));
+                average.add(new Entry(x, (float) (aggregator.getMovingAverage(s, k, WINDOW) - offset)));
+            }
+            if (points.isEmpty()) continue;
+            LineDataSet pointSet = new LineDataSet(points, labels[s]);
+            pointSet.setColor(colors[s]);
+            pointSet.setCircleColor(colors[s]);
+            pointSet.setDrawValues(false);
+            pointSet.setLineWidth(1f);
+            data.addDataSet(pointSet);
+            LineDataSet averageSet = new LineDataSet(average, getString(R.string.trend_average, labels[s], WINDOW));
+            averageSet.setColor(colors[s]);
+            averageSet.setLineWidth(3f);
+            averageSet.setDrawCircles(false);
+            averageSet.setDrawValues(false);
+            data.addDataSet(averageSet);
+        }
+        return data.getDataSetCount() > 0 ? data : null;
+    }
+
+    private String createSlopes(TrendAggregator aggregator) {
+        StringBuilder text = new StringBuilder(getString(R.string.trend_slopes)).append('\n');
+        text.append(String.format(Locale.ROOT, "%7s %7s %7s\n", "Hz", getString(R.string.right), getString(R.string.left)));
+        for (int i = 0; i < testFrequencies.length; i++) {
+            text.append(String.format(Locale.ROOT, "%7d", testFrequencies[i]));
+            for (int s = 0; s < 2; s++) {
+                double slope = aggregator.getSlope(s, i);
+                text.append(Double.isNaN(slope) ? String.format(Locale.ROOT, " %7s", "-") : String.format(Locale.ROOT, " %+7.1f", slope));
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            startActivity(new Intent(this, TestLookup.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,203 @@
+package org.woheller69.audiometry;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates of all tests of one user for the trend view, kept up to date as tests are added or
+ * deleted instead of being recomputed:
+ *  - per ear and frequency the sums of a least-squares line through the thresholds over time
+ *  - per test the pure-tone average (PTA) of 500, 1000, 2000 and 4000 Hz with prefix sums, so
+ *    that a moving average over any window is available in constant time per point
+ * Thresholds are aggregated as measured (dB re full scale). The calibration is a constant offset
+ * per frequency, it does not change slopes and is subtracted when values are shown.
+ */
+public class TrendAggregator {
+    public static final int[] PTA_FREQUENCIES = {500, 1000, 2000, 4000};
+    static final long REFERENCE_MS = 1577836800000L;  // 2020-01-01, keeps time sums small
+    static final double YEAR_MS = 365.25 * 24 * 3600 * 1000;
+    static final double MIN_SPREAD_YEARS = 7 / 365.25;  // standard deviation of test times needed for a slope
+
+    private static final Map<Integer, TrendAggregator> instances = new HashMap<>();
+    private static final ResultsLog.Listener logListener = new ResultsLog.Listener() {
+        @Override
+        public void onAppended(TestResult result) {
+            TrendAggregator aggregator;
+            synchronized (instances) {
+                aggregator = instances.get(result.user);
+            }
+            if (aggregator != null) aggregator.add(result);
+        }
+
+        @Override
+        public void onDeleted(TestResult result) {
+            TrendAggregator aggregator;
+            synchronized (instances) {
+                aggregator = instances.get(result.user);
+            }
+            if (aggregator != null) aggregator.remove(result);
+        }
+
+        @Override
+        public void onReset() {
+            synchronized (instances) {
+                instances.clear();
+            }
+        }
+    };
+
+    private final int[] frequencies;
+    private final int[][] n;
+    private final double[][] sumT, sumY, sumTT, sumTY;
+
+    // tests in chronological order
+    private long[] timestamps = new long[64];
+    private double[][] pta = new double[2][64];
+    private double[][] prefixSum = new double[2][65];   // sum of valid PTAs before test k
+    private int[][] prefixCount = new int[2][65];       // number of valid PTAs before test k
+    private int size = 0;
+
+    /**
+     * @param frequencies - frequencies in Hz for which slopes are kept
+     */
+    public TrendAggregator(int[] frequencies) {
+        this.frequencies = frequencies;
+        n = new int[2][frequencies.length];
+        sumT = new double[2][frequencies.length];
+        sumY = new double[2][frequencies.length];
+        sumTT = new double[2][frequencies.length];
+        sumTY = new double[2][frequencies.length];
+    }
+
+    /**
+     * @return the aggregates of a user, built by reading the log once and then updated with each change
+     */
+    public static TrendAggregator get(Context context, int user) {
+        ResultsLog.addListener(logListener);
+        synchronized (instances) {
+            TrendAggregator aggregator = instances.get(user);
+            if (aggregator != null) return aggregator;
+        }
+        TrendAggregator aggregator = new TrendAggregator(PerformTest.testFrequencies);
+        ResultsLog log = ResultsLog.get(context);
+        synchronized (log) {  //no change can be missed between reading and registering
+            log.scan(user, aggregator::add);
+            synchronized (instances) {
+                instances.put(user, aggregator);
+            }
+        }
+        return aggregator;
+    }
+
+    public synchronized void add(TestResult result) {
+        int position = Arrays.binarySearch(timestamps, 0, size, result.timestamp);
+        if (position >= 0) return;  //already added
+        position = -position - 1;
+        update(result, 1);
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, 2 * size);
+            for (int s = 0; s < 2; s++) {
+                pta[s] = Arrays.copyOf(pta[s], 2 * size);
+                prefixSum[s] = Arrays.copyOf(prefixSum[s], 2 * size + 1);
+                prefixCount[s] = Arrays.copyOf(prefixCount[s], 2 * size + 1);
+            }
+        }
+        System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+        timestamps[position] = result.timestamp;
+        for (int s = 0; s < 2; s++) {
+            System.arraycopy(pta[s], position, pta[s], position + 1, size - position);
+            pta[s][position] = pta(result, s);
+        }
+        size++;
+        updatePrefixes(position);  //new tests are usually the newest, then only one prefix is computed
+    }
+
+    public synchronized void remove(TestResult result) {
+        int position = Arrays.binarySearch(timestamps, 0, size, result.timestamp);
+        if (position < 0) return;
+        update(result, -1);
+        System.arraycopy(timestamps, position + 1, timestamps, position, size - position - 1);
+        for (int s = 0; s < 2; s++) System.arraycopy(pta[s], position + 1, pta[s], position, size - position - 1);
+        size--;
+        updatePrefixes(position);
+    }
+
+    private void update(TestResult result, int sign) {
+        double t = (result.timestamp - REFERENCE_MS) / YEAR_MS;
+        for (int s = 0; s < 2; s++) {
+            double[] thresholds = result.thresholdsFor(s, frequencies);
+            for (int i = 0; i < frequencies.length; i++) {
+                double y = thresholds[i];
+                if (Double.isNaN(y)) continue;
+                n[s][i] += sign;
+                sumT[s][i] += sign * t;
+                sumY[s][i] += sign * y;
+                sumTT[s][i] += sign * t * t;
+                sumTY[s][i] += sign * t * y;
+            }
+        }
+    }
+
+    private double pta(TestResult result, int ear) {
+        double[] thresholds = result.thresholdsFor(ear, PTA_FREQUENCIES);
+        double sum = 0;
+        for (double threshold : thresholds) {
+            if (Double.isNaN(threshold)) return Double.NaN;  //PTA needs all four frequencies
+            sum += threshold;
+        }
+        return sum / thresholds.length;
+    }
+
+    private void updatePrefixes(int from) {
+        for (int s = 0; s < 2; s++) {
+            for (int k = from; k < size; k++) {
+                boolean valid = !Double.isNaN(pta[s][k]);
+                prefixSum[s][k + 1] = prefixSum[s][k] + (valid ? pta[s][k] : 0);
+                prefixCount[s][k + 1] = prefixCount[s][k] + (valid ? 1 : 0);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getTimestamp(int k) {
+        return timestamps[k];
+    }
+
+    /**
+     * @return PTA of test k in dB as measured, NaN if a PTA frequency is missing
+     */
+    public synchronized double getPta(int ear, int k) {
+        return pta[ear][k];
+    }
+
+    /**
+     * @return mean PTA of the tests k-window+1 to k, NaN if none of them has a PTA
+     */
+    public synchronized double getMovingAverage(int ear, int k, int window) {
+        int from = Math.max(0, k + 1 - window);
+        int count = prefixCount[ear][k + 1] - prefixCount[ear][from];
+        return count == 0 ? Double.NaN : (prefixSum[ear][k + 1] - prefixSum[ear][from]) / count;
+    }
+
+    /**
+     * @return change of the threshold in dB per year, NaN with fewer than two tests or if their
+     * times spread less than MIN_SPREAD_YEARS
+     */
+    public synchronized double getSlope(int ear, int frequencyIndex) {
+        int count = n[ear][frequencyIndex];
+        if (count < 2) return Double.NaN;
+        double denominator = count * sumTT[ear][frequencyIndex] - sumT[ear][frequencyIndex] * sumT[ear][frequencyIndex];
+        if (denominator < MIN_SPREAD_YEARS * MIN_SPREAD_YEARS * count * count) return Double.NaN;  //tests too close in time
+        return (count * sumTY[ear][frequencyIndex] - sumT[ear][frequencyIndex] * sumY[ear][frequencyIndex]) / denominator;
+    }
+
+    public synchronized int getCount(int ear, int frequencyIndex) {
+        return n[ear][frequencyIndex];
+    }
+}
@@ -0,0 +1,53 @@
+package org.woheller69.audiometry;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.woheller69.audiometry.PerformTest.testFrequencies;
+
+/**
+ * Writes a calibration and a few tests for the current user if there are none, so that the
+ * journeys of the benchmark module reach the test list and the charts on a fresh device.
+ * Only part of the variants built for the benchmark module, started by
+ *   am start -W -n org.woheller69.audiometry/.SeedActivity
+ */
+public class SeedActivity extends Activity {
+    private static final int TESTS = 8;
+    private static final long DAY_MS = 24 * 3600 * 1000L;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if (!FileOperations.isCalibrated(this)) {
+            double[] calibration = new double[testFrequencies.length];
+            for (int i = 0; i < calibration.length; i++) calibration[i] = 40;  //raw level of 0 dB HL
+            new FileOperations().writeCalibration(calibration, this);
+        }
+        SharedPreferences prefManager = PreferenceManager.getDefaultSharedPreferences(this);
+        int user = prefManager.getInt("user",1);
+        ResultsLog log = ResultsLog.get(this);
+        if (log != null && log.count(user) == 0) {
+            long now = System.currentTimeMillis();
+            List<TestResult> results = new ArrayList<>();
+            for (int k = 0; k < TESTS; k++) {
+                double[][] thresholds = new double[2][testFrequencies.length];
+                for (int s = 0; s < 2; s++) {
+                    for (int i = 0; i < testFrequencies.length; i++) thresholds[s][i] = 45 + 2 * i + 3 * s + k;
+                }
+                results.add(TestResult.of(user, now - (TESTS - k) * DAY_MS, testFrequencies, thresholds[0], thresholds[1], null));
+            }
+            try {
+                log.append(results);
+            } catch (IOException e) {System.out.println (e.toString());}
+        }
+        StartupState.invalidate();
+        finish();
+    }
+}
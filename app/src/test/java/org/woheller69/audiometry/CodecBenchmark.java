@@ -0,0 +1,125 @@
+package org.woheller69.audiometry;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * JVM microbenchmark of the TestResult codec, as used when the whole history is loaded for
+ * trend analysis. Encodes many records into one array laid out like the slots of ResultsLog,
+ * then decodes them in rounds and reports records per second for each variant.
+ * The classes involved do not depend on Android, e.g.
+ *   javac -d out -sourcepath app/src/main/java:app/src/test/java app/src/test/java/org/woheller69/audiometry/CodecBenchmark.java
+ *   java -cp out org.woheller69.audiometry.CodecBenchmark --records=100000 --rounds=10
+ * Options: --records, --rounds, --seed
+ */
+public class CodecBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int SLOT_SIZE = 512;  //as ResultsLog.SLOT_SIZE, ResultsLog cannot be loaded outside Android
+
+    int records = 100000;
+    int rounds = 10;
+    long seed = 1;
+
+    private byte[] slots;
+    private byte[] legacy;
+    private int recordSize;
+    private int legacySize;
+    private double checksum = 0;  //keeps the JIT from removing the decoding
+
+    public static void main(String[] args) {
+        CodecBenchmark benchmark = new CodecBenchmark();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length < 2) continue;
+            switch (option[0]) {
+                case "--records": benchmark.records = Integer.parseInt(option[1]); break;
+                case "--rounds": benchmark.rounds = Integer.parseInt(option[1]); break;
+                case "--seed": benchmark.seed = Long.parseLong(option[1]); break;
+                default: System.out.println("Unknown option " + option[0]);
+            }
+        }
+        benchmark.run();
+    }
+
+    void run() {
+        Random random = new Random(seed);
+        TestResult[] results = new TestResult[records];
+        for (int k = 0; k < records; k++) {
+            double[][] thresholds = new double[2][TestFrequencies.FREQUENCIES.length];
+            int[][] presentations = new int[2][TestFrequencies.FREQUENCIES.length];
+            for (int s = 0; s < 2; s++) {
+                for (int i = 0; i < thresholds[s].length; i++) {
+                    thresholds[s][i] = random.nextDouble() * ThresholdStrategy.MAX_LEVEL;
+                    presentations[s][i] = 3 + random.nextInt(20);
+                }
+            }
+            results[k] = TestResult.of(1, k, TestFrequencies.FREQUENCIES, thresholds[0], thresholds[1], presentations);
+        }
+
+        recordSize = results[0].encodedSize();
+        legacySize = 2 * 8 * TestFrequencies.FREQUENCIES.length;
+        slots = new byte[records * SLOT_SIZE];
+        legacy = new byte[records * legacySize];
+        long start = System.nanoTime();
+        for (int k = 0; k < records; k++) {
+            System.arraycopy(results[k].encode(), 0, slots, k * SLOT_SIZE, recordSize);
+            ByteBuffer.wrap(legacy, k * legacySize, legacySize).asDoubleBuffer().put(results[k].thresholds[0]).put(results[k].thresholds[1]);
+        }
+        report("encode", System.nanoTime() - start, 1);
+        System.out.println(String.format(Locale.US, "%d records of %d bytes", records, recordSize));
+
+        measure("decode", this::decodeRound);
+        measure("decode legacy", this::decodeLegacyRound);
+        measure("legacy byte-by-byte", this::byteByByteRound);
+        System.out.println("checksum " + checksum);
+    }
+
+    private void decodeRound() {
+        for (int k = 0; k < records; k++) {
+            TestResult result = TestResult.decode(slots, k * SLOT_SIZE, recordSize);
+            checksum += result.thresholds[1][0];
+        }
+    }
+
+    private void decodeLegacyRound() {
+        byte[] data = new byte[legacySize];
+        for (int k = 0; k < records; k++) {
+            System.arraycopy(legacy, k * legacySize, data, 0, legacySize);
+            TestResult result = TestResult.decodeLegacy(data, legacySize, 1, k, TestFrequencies.FREQUENCIES);
+            checksum += result.thresholds[1][0];
+        }
+    }
+
+    /**
+     * Reference: conversion as done by FileOperations before, one temporary array per double
+     */
+    private void byteByByteRound() {
+        int n = legacySize / 8;
+        for (int k = 0; k < records; k++) {
+            double[] values = new double[n];
+            int counter = k * legacySize;
+            for (int i = 0; i < n; i++) {
+                byte[] tmpByteBuffer = new byte[8];
+                for (int j = 0; j < 8; j++) {
+                    tmpByteBuffer[j] = legacy[counter];
+                    counter++;
+                }
+                values[i] = ByteBuffer.wrap(tmpByteBuffer).getDouble();
+            }
+            checksum += values[n / 2];
+        }
+    }
+
+    private void measure(String name, Runnable round) {
+        for (int r = 0; r < WARMUP_ROUNDS; r++) round.run();
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) round.run();
+        report(name, System.nanoTime() - start, rounds);
+    }
+
+    private void report(String name, long nanos, int rounds) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format(Locale.US, "%-20s %10.0f records/s %8.1f ns/record", name, (double) records * rounds / seconds, nanos / ((double) records * rounds)));
+    }
+}
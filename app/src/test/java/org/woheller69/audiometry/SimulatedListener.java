@@ -0,0 +1,103 @@
+package org.woheller69.audiometry;
+
+import java.util.Random;
+
+/**
+ * Synthetic listener for simulated tests. Responds to a tone according to a psychometric
+ * function around its threshold, taps without hearing a tone with the false alarm rate and
+ * misses audible tones with the miss rate.
+ * Thresholds are in the same dB unit as ThresholdStrategy levels.
+ */
+public class SimulatedListener {
+
+    public enum Psychometric { LOGISTIC, GAUSSIAN }
+
+    public enum AudiogramShape { NORMAL, FLAT, SLOPING, NOISE_NOTCH, RISING }
+
+    private final double[][] thresholds;  //right=0, left=1
+    private final Psychometric function;
+    private final double spread;
+    private final double falseAlarmRate;
+    private final double missRate;
+
+    /**
+     * @param thresholds - thresholds per ear and frequency index in dB
+     * @param function - shape of the psychometric function
+     * @param spread - spread of the psychometric function in dB, smaller is steeper
+     * @param falseAlarmRate - probability of a response without hearing a tone
+     * @param missRate - probability of missing a tone well above threshold
+     */
+    public SimulatedListener(double[][] thresholds, Psychometric function, double spread, double falseAlarmRate, double missRate) {
+        this.thresholds = thresholds;
+        this.function = function;
+        this.spread = spread;
+        this.falseAlarmRate = falseAlarmRate;
+        this.missRate = missRate;
+    }
+
+    /**
+     * Generates hearing levels in dB HL for an audiogram shape
+     * @param severity - hearing loss in dB at the most affected frequency
+     * @param jitter - standard deviation of random deviations per frequency in dB
+     */
+    public static double[] audiogram(AudiogramShape shape, int[] frequencies, double severity, double jitter, Random random) {
+        double[] hl = new double[frequencies.length];
+        double octaves = Math.log(8000.0 / 125) / Math.log(2);
+        for (int i = 0; i < frequencies.length; i++) {
+            double octave = Math.log(frequencies[i] / 125.0) / Math.log(2);  //0 at 125 Hz, 6 at 8000 Hz
+            switch (shape) {
+                case FLAT:
+                    hl[i] = severity;
+                    break;
+                case SLOPING:
+                    hl[i] = severity * Math.max(0, octave - 1) / (octaves - 1);
+                    break;
+                case NOISE_NOTCH:
+                    hl[i] = severity * Math.max(0, 1 - Math.abs(Math.log(frequencies[i] / 4000.0) / Math.log(2)));
+                    break;
+                case RISING:
+                    hl[i] = severity * (1 - octave / octaves);
+                    break;
+                default:
+                    hl[i] = 0;
+            }
+            hl[i] += jitter * random.nextGaussian();
+        }
+        return hl;
+    }
+
+    public double getThreshold(int ear, int i) {
+        return thresholds[ear][i];
+    }
+
+    /**
+     * Probability of a response to a tone at level
+     */
+    public double pHeard(int ear, int i, double level) {
+        double x = (level - thresholds[ear][i]) / spread;
+        double p;
+        if (function == Psychometric.GAUSSIAN) p = 0.5 * (1 + erf(x / Math.sqrt(2)));
+        else p = 1 / (1 + Math.exp(-x));
+        return falseAlarmRate + (1 - falseAlarmRate - missRate) * p;
+    }
+
+    public boolean respond(int ear, int i, double level, Random random) {
+        return random.nextDouble() < pHeard(ear, i, level);
+    }
+
+    /**
+     * Time from tone onset to the tap in ms
+     */
+    public long responseLatency(Random random) {
+        return (long) (250 - 200 * Math.log(1 - random.nextDouble()));  //250 ms plus exponential with mean 200 ms
+    }
+
+    /**
+     * Error function, Abramowitz and Stegun 7.1.26, maximum error 1.5e-7
+     */
+    private static double erf(double x) {
+        double t = 1 / (1 + 0.3275911 * Math.abs(x));
+        double y = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return x >= 0 ? y : -y;
+    }
+}
@@ -0,0 +1,192 @@
+package org.woheller69.audiometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline benchmark of test procedures. Runs thousands of simulated tests in parallel and
+ * reports the distribution of test durations and the threshold error per frequency.
+ * It lives in the unit test source set, so it is not part of the app. The classes involved do not
+ * depend on Android and run on any JVM, e.g. after ./gradlew :app:compileDebugUnitTestJavaWithJavac
+ *   java -cp app/build/intermediates/javac/debug/compileDebugJavaWithJavac/classes:app/build/intermediates/javac/debugUnitTest/compileDebugUnitTestJavaWithJavac/classes \
+ *     org.woheller69.audiometry.SimulationHarness --tests=10000 --methods=HughsonWestlake,Bayesian
+ * Options: --tests, --methods, --sequencing (sequential, interleaved or both comma separated), --shape (RANDOM or a SimulatedListener.AudiogramShape), --severity,
+ * --function (LOGISTIC, GAUSSIAN), --spread, --fa, --miss, --jitter, --seed, --threads
+ */
+public class SimulationHarness {
+    static final int[] FREQUENCIES = TestFrequencies.FREQUENCIES;
+    static final float[] CORRECTION = TestFrequencies.CORRECTION_DBSPL_TO_DBHL;
+    static final double REFERENCE_1000HZ = 20;  //assumed calibration at 1000 Hz in dB
+    private static final int BATCH_SIZE = 50;
+
+    int tests = 2000;
+    List<String> methods = Arrays.asList(ThresholdStrategy.HUGHSON_WESTLAKE, ThresholdStrategy.BAYESIAN, ThresholdStrategy.BISECTION);
+    List<String> sequencing = Arrays.asList("sequential", "interleaved");
+    String shape = "RANDOM";
+    double severity = 50;
+    SimulatedListener.Psychometric function = SimulatedListener.Psychometric.LOGISTIC;
+    double spread = 2;
+    double falseAlarmRate = 0.02;
+    double missRate = 0.02;
+    double jitter = 5;
+    long seed = 1;
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Aggregated results of simulated tests for one method
+     */
+    static class Statistics {
+        long[] durations = new long[0];
+        final double[][] sumError = new double[2][FREQUENCIES.length];
+        final double[][] sumAbsError = new double[2][FREQUENCIES.length];
+        final double[][] sumSquaredError = new double[2][FREQUENCIES.length];
+        final long[][] sumPresentations = new long[2][FREQUENCIES.length];
+
+        void add(TestSimulation.Result result, int n) {
+            durations[n] = result.durationMs;
+            for (int s = 0; s < 2; s++) {
+                for (int i = 0; i < FREQUENCIES.length; i++) {
+                    double e = result.error[s][i];
+                    sumError[s][i] += e;
+                    sumAbsError[s][i] += Math.abs(e);
+                    sumSquaredError[s][i] += e * e;
+                    sumPresentations[s][i] += result.presentations[s][i];
+                }
+            }
+        }
+
+        void merge(Statistics other) {
+            long[] merged = Arrays.copyOf(durations, durations.length + other.durations.length);
+            System.arraycopy(other.durations, 0, merged, durations.length, other.durations.length);
+            durations = merged;
+            for (int s = 0; s < 2; s++) {
+                for (int i = 0; i < FREQUENCIES.length; i++) {
+                    sumError[s][i] += other.sumError[s][i];
+                    sumAbsError[s][i] += other.sumAbsError[s][i];
+                    sumSquaredError[s][i] += other.sumSquaredError[s][i];
+                    sumPresentations[s][i] += other.sumPresentations[s][i];
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        SimulationHarness harness = new SimulationHarness();
+        for (String arg : args) harness.parse(arg);
+        ExecutorService executor = Executors.newFixedThreadPool(harness.threads);
+        try {
+            for (String method : harness.methods) {
+                for (String mode : harness.sequencing) {
+                    long start = System.nanoTime();
+                    Statistics statistics = harness.simulate(method, mode.equals("interleaved"), executor);
+                    harness.report(method + " " + mode, statistics, (System.nanoTime() - start) / 1e9);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    void parse(String arg) {
+        String[] option = arg.split("=", 2);
+        if (option.length != 2) throw new IllegalArgumentException("Expected --option=value: " + arg);
+        String value = option[1];
+        switch (option[0]) {
+            case "--tests": tests = Integer.parseInt(value); break;
+            case "--methods": methods = Arrays.asList(value.split(",")); break;
+            case "--sequencing": sequencing = Arrays.asList(value.split(",")); break;
+            case "--shape": shape = value; break;
+            case "--severity": severity = Double.parseDouble(value); break;
+            case "--function": function = SimulatedListener.Psychometric.valueOf(value); break;
+            case "--spread": spread = Double.parseDouble(value); break;
+            case "--fa": falseAlarmRate = Double.parseDouble(value); break;
+            case "--miss": missRate = Double.parseDouble(value); break;
+            case "--jitter": jitter = Double.parseDouble(value); break;
+            case "--seed": seed = Long.parseLong(value); break;
+            case "--threads": threads = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option: " + option[0]);
+        }
+    }
+
+    static double[] calibration() {
+        double[] calibration = new double[FREQUENCIES.length];
+        for (int i = 0; i < FREQUENCIES.length; i++) calibration[i] = REFERENCE_1000HZ + CORRECTION[i];
+        return calibration;
+    }
+
+    SimulatedListener createListener(double[] calibration, Random random) {
+        SimulatedListener.AudiogramShape[] shapes = SimulatedListener.AudiogramShape.values();
+        double[][] thresholds = new double[2][];
+        for (int s = 0; s < 2; s++) {
+            SimulatedListener.AudiogramShape audiogramShape = shape.equals("RANDOM") ? shapes[random.nextInt(shapes.length)] : SimulatedListener.AudiogramShape.valueOf(shape);
+            double[] hl = SimulatedListener.audiogram(audiogramShape, FREQUENCIES, severity * random.nextDouble(), jitter, random);
+            thresholds[s] = new double[FREQUENCIES.length];
+            for (int i = 0; i < FREQUENCIES.length; i++) {
+                thresholds[s][i] = Math.max(ThresholdStrategy.MIN_LEVEL, Math.min(ThresholdStrategy.MAX_LEVEL, calibration[i] + hl[i]));
+            }
+        }
+        return new SimulatedListener(thresholds, function, spread, falseAlarmRate, missRate);
+    }
+
+    Statistics simulate(String method, boolean interleaved, ExecutorService executor) throws InterruptedException, ExecutionException {
+        double[] calibration = calibration();
+        TestSimulation simulation = new TestSimulation(method, calibration, interleaved);
+        List<Future<Statistics>> futures = new ArrayList<>();
+        for (int batch = 0; batch * BATCH_SIZE < tests; batch++) {
+            int first = batch * BATCH_SIZE;
+            int count = Math.min(BATCH_SIZE, tests - first);
+            long batchSeed = seed * 1000003 + batch;  //same listeners for every method
+            futures.add(executor.submit(() -> {
+                Random random = new Random(batchSeed);
+                Statistics statistics = new Statistics();
+                statistics.durations = new long[count];
+                for (int n = 0; n < count; n++) {
+                    statistics.add(simulation.run(createListener(calibration, random), random), n);
+                }
+                return statistics;
+            }));
+        }
+        Statistics total = new Statistics();
+        for (Future<Statistics> future : futures) total.merge(future.get());
+        return total;
+    }
+
+    void report(String name, Statistics statistics, double seconds) {
+        long[] durations = statistics.durations;
+        Arrays.sort(durations);
+        int n = durations.length;
+        System.out.println(String.format(Locale.US, "%s: %d simulated tests in %.1f s", name, n, seconds));
+        System.out.println(String.format(Locale.US, "  duration p10 %s  p50 %s  p90 %s  p99 %s  max %s",
+                minutes(percentile(durations, 0.10)), minutes(percentile(durations, 0.50)),
+                minutes(percentile(durations, 0.90)), minutes(percentile(durations, 0.99)), minutes(durations[n - 1])));
+        System.out.println("  frequency   bias dB   mean |error| dB   rms error dB   presentations");
+        for (int i = 0; i < FREQUENCIES.length; i++) {
+            double bias = 0, abs = 0, squared = 0, presentations = 0;
+            for (int s = 0; s < 2; s++) {
+                bias += statistics.sumError[s][i];
+                abs += statistics.sumAbsError[s][i];
+                squared += statistics.sumSquaredError[s][i];
+                presentations += statistics.sumPresentations[s][i];
+            }
+            System.out.println(String.format(Locale.US, "  %6d Hz   %7.2f   %15.2f   %12.2f   %13.1f",
+                    FREQUENCIES[i], bias / (2 * n), abs / (2 * n), Math.sqrt(squared / (2 * n)), presentations / (2 * n)));
+        }
+        System.out.println();
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    static String minutes(long millis) {
+        long seconds = millis / 1000;
+        return String.format(Locale.US, "%d:%02d", seconds / 60, seconds % 60);
+    }
+}
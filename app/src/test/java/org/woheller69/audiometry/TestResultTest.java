@@ -0,0 +1,140 @@
+package org.woheller69.audiometry;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultTest {
+    private static final int[] FREQUENCIES = TestFrequencies.FREQUENCIES;
+
+    private static TestResult sample() {
+        int n = FREQUENCIES.length;
+        double[][] thresholds = new double[2][n];
+        int[][] presentations = new int[2][n];
+        int[][] flags = new int[2][n];
+        for (int s = 0; s < 2; s++) {
+            for (int i = 0; i < n; i++) {
+                thresholds[s][i] = 10.5 * s + 3.25 * i;
+                presentations[s][i] = 4 + i;
+                flags[s][i] = i % 3;
+            }
+        }
+        return new TestResult(7, 1700000000123L, FREQUENCIES, TestResult.EAR_RIGHT | TestResult.EAR_LEFT, thresholds, presentations, flags);
+    }
+
+    private static void assertSame(TestResult expected, TestResult actual) {
+        assertNotNull(actual);
+        assertEquals(expected.user, actual.user);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.earMask, actual.earMask);
+        assertArrayEquals(expected.frequencies, actual.frequencies);
+        for (int s = 0; s < 2; s++) {
+            if (!expected.hasEar(s)) continue;
+            assertArrayEquals(expected.thresholds[s], actual.thresholds[s], 0);
+            assertArrayEquals(expected.presentations[s], actual.presentations[s]);
+            assertArrayEquals(expected.flags[s], actual.flags[s]);
+        }
+    }
+
+    /**
+     * Writes a record in the layout of version 1, threshold, presentations and flags per point
+     */
+    private static byte[] encodeVersion1(TestResult result) {
+        int n = result.frequencies.length;
+        ByteBuffer buffer = ByteBuffer.allocate(24 + 4 * n + 2 * n * 11 + 4);
+        buffer.putInt(TestResult.MAGIC).putShort(TestResult.VERSION_INTERLEAVED).putShort((short) 0);
+        buffer.putInt(result.user).putLong(result.timestamp);
+        buffer.put((byte) result.earMask).put((byte) 0).putShort((short) n);
+        for (int frequency : result.frequencies) buffer.putInt(frequency);
+        for (int s = 0; s < 2; s++) {
+            for (int i = 0; i < n; i++) {
+                buffer.putDouble(result.thresholds[s][i]).putShort((short) result.presentations[s][i]).put((byte) result.flags[s][i]);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    @Test
+    public void roundTripVersion2() {
+        TestResult result = sample();
+        byte[] record = result.encode();
+        assertEquals(result.encodedSize(), record.length);
+        assertTrue(TestResult.isRecord(record, record.length));
+        assertSame(result, TestResult.decode(record, 0, record.length));
+    }
+
+    @Test
+    public void roundTripOneEar() {
+        TestResult both = sample();
+        TestResult right = new TestResult(both.user, both.timestamp, both.frequencies, TestResult.EAR_RIGHT, both.thresholds, both.presentations, both.flags);
+        byte[] record = right.encode();
+        TestResult decoded = TestResult.decode(record, 0, record.length);
+        assertSame(right, decoded);
+        assertTrue(Double.isNaN(decoded.thresholdsFor(1, FREQUENCIES)[0]));
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        TestResult result = sample();
+        byte[] record = result.encode();
+        byte[] slots = new byte[512 + record.length];
+        System.arraycopy(record, 0, slots, 512, record.length);
+        assertSame(result, TestResult.decode(slots, 512, record.length));
+    }
+
+    @Test
+    public void decodesVersion1() {
+        TestResult result = sample();
+        byte[] record = encodeVersion1(result);
+        assertSame(result, TestResult.decode(record, 0, record.length));
+    }
+
+    @Test
+    public void rejectsCrcMismatch() {
+        for (byte[] record : new byte[][]{sample().encode(), encodeVersion1(sample())}) {
+            record[30] ^= 1;
+            assertNull(TestResult.decode(record, 0, record.length));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedRecord() {
+        byte[] record = sample().encode();
+        assertNull(TestResult.decode(record, 0, record.length - 5));
+    }
+
+    @Test
+    public void decodesLegacyFile() {
+        int n = FREQUENCIES.length;
+        ByteBuffer buffer = ByteBuffer.allocate(2 * 8 * n);
+        for (int k = 0; k < 2 * n; k++) buffer.putDouble(k + 0.5);
+        TestResult result = TestResult.decodeLegacy(buffer.array(), buffer.capacity(), 3, 42, FREQUENCIES);
+        assertEquals(3, result.user);
+        assertEquals(42, result.timestamp);
+        for (int i = 0; i < n; i++) {
+            assertEquals(i + 0.5, result.thresholds[0][i], 0);
+            assertEquals(n + i + 0.5, result.thresholds[1][i], 0);
+        }
+        assertSame(result, TestResult.decode(result.encode(), 0, result.encodedSize()));
+    }
+
+    @Test
+    public void legacyShortFileIsNaN() {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 3);
+        for (int k = 0; k < 3; k++) buffer.putDouble(k);
+        TestResult result = TestResult.decodeLegacy(buffer.array(), buffer.capacity(), 1, 1, FREQUENCIES);
+        assertEquals(2, result.thresholds[0][2], 0);
+        assertTrue(Double.isNaN(result.thresholds[0][3]));
+        assertTrue(Double.isNaN(result.thresholds[1][0]));
+    }
+}
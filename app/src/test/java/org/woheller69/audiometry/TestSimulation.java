@@ -0,0 +1,74 @@
+package org.woheller69.audiometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the threshold search of PerformTest against a SimulatedListener on a VirtualClock.
+ * Tracks are sequenced and presentations are timed as in PerformTest, so the simulated
+ * duration corresponds to the real test.
+ */
+public class TestSimulation {
+
+    public static class Result {
+        public long durationMs;
+        public final int[][] presentations;
+        public final double[][] error;  //estimated minus true threshold in dB
+
+        Result(int numFrequencies) {
+            presentations = new int[2][numFrequencies];
+            error = new double[2][numFrequencies];
+        }
+    }
+
+    private final String method;
+    private final double[] calibration;
+    private final boolean interleaved;
+
+    /**
+     * @param method - ThresholdStrategy method name
+     * @param calibration - normal hearing threshold per frequency in dB, tests start 30 dB above
+     * @param interleaved - sequencing mode of TestSequencer
+     */
+    public TestSimulation(String method, double[] calibration, boolean interleaved) {
+        this.method = method;
+        this.calibration = calibration;
+        this.interleaved = interleaved;
+    }
+
+    public Result run(SimulatedListener listener, Random random) {
+        VirtualClock clock = new VirtualClock();
+        Result result = new Result(calibration.length);
+        List<TestTrack> tracks = new ArrayList<>();
+        for (int s = 0; s < 2; s++) {
+            for (int i = 0; i < calibration.length; i++) {
+                double start = Math.max(ThresholdStrategy.MIN_LEVEL, Math.min(ThresholdStrategy.MAX_LEVEL, calibration[i] + 30));
+                tracks.add(new TestTrack(s, i, ThresholdStrategy.create(method, start)));
+            }
+        }
+        TestSequencer sequencer = new TestSequencer(tracks, interleaved);
+        try {
+            TestTrack track;
+            while ((track = sequencer.next(random)) != null) {
+                long startTime = clock.currentTimeMillis();
+                boolean heard = listener.respond(track.ear, track.frequencyIndex, track.nextLevel(), random);
+                if (interleaved) {
+                    long responseTime = startTime + listener.responseLatency(random);
+                    PresentationTiming.waitForResponse(clock, startTime, () -> heard && clock.currentTimeMillis() >= responseTime, PresentationTiming.randomDelay(random));
+                } else {
+                    PresentationTiming.waitForNextTone(clock, startTime, PresentationTiming.randomGap(random));
+                }
+                track.record(heard);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TestTrack t : tracks) {
+            result.presentations[t.ear][t.frequencyIndex] = t.getPresentations();
+            result.error[t.ear][t.frequencyIndex] = t.getThreshold() - listener.getThreshold(t.ear, t.frequencyIndex);
+        }
+        result.durationMs = clock.currentTimeMillis();
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+package org.woheller69.audiometry;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives each ThresholdStrategy with a SimulatedListener from a fixed seed, so every run
+ * presents the same tones.
+ */
+public class ThresholdStrategyTest {
+    private static final String[] METHODS = {ThresholdStrategy.HUGHSON_WESTLAKE, ThresholdStrategy.BAYESIAN, ThresholdStrategy.BISECTION};
+    private static final int LISTENERS = 500;
+    private static final int LIMIT = 1000;  // presentations after which a search counts as endless
+
+    private static int cap(String method) {
+        if (ThresholdStrategy.BAYESIAN.equals(method)) return BayesianStrategy.MAX_PRESENTATIONS;
+        if (ThresholdStrategy.BISECTION.equals(method)) return BisectionStrategy.MAX_PRESENTATIONS;
+        return HughsonWestlakeStrategy.MAX_PRESENTATIONS;
+    }
+
+    /**
+     * Runs one search for frequency index 0 of the right ear
+     */
+    private static ThresholdStrategy search(String method, SimulatedListener listener, double start, Random random) {
+        ThresholdStrategy strategy = ThresholdStrategy.create(method, start);
+        for (int k = 0; k < LIMIT && !strategy.isFinished(); k++) {
+            strategy.onResponse(listener.respond(0, 0, strategy.nextLevel(), random));
+        }
+        assertTrue(method + " did not finish", strategy.isFinished());
+        return strategy;
+    }
+
+    private static SimulatedListener listener(double threshold, double falseAlarmRate, double missRate) {
+        return new SimulatedListener(new double[][]{{threshold}, {threshold}}, SimulatedListener.Psychometric.LOGISTIC, 2, falseAlarmRate, missRate);
+    }
+
+    @Test
+    public void finishesWithinPresentationCap() {
+        for (String method : METHODS) {
+            Random random = new Random(1);
+            for (int n = 0; n < LISTENERS; n++) {
+                double threshold = ThresholdStrategy.MIN_LEVEL + random.nextDouble() * (ThresholdStrategy.MAX_LEVEL - ThresholdStrategy.MIN_LEVEL);
+                ThresholdStrategy strategy = search(method, listener(threshold, 0.05, 0.05), threshold + 30 * random.nextGaussian(), random);
+                assertTrue(method + " used " + strategy.getPresentations() + " presentations", strategy.getPresentations() <= cap(method));
+            }
+        }
+    }
+
+    @Test
+    public void thresholdWithinErrorBound() {
+        for (String method : METHODS) {
+            Random random = new Random(2);
+            double sumAbsError = 0;
+            for (int n = 0; n < LISTENERS; n++) {
+                double threshold = 10 + random.nextDouble() * 70;
+                ThresholdStrategy strategy = search(method, listener(threshold, 0.02, 0.02), threshold + 30, random);
+                sumAbsError += Math.abs(strategy.getThreshold() - threshold);
+            }
+            double meanAbsError = sumAbsError / LISTENERS;
+            assertTrue(method + " mean absolute error " + meanAbsError + " dB", meanAbsError <= 5);
+        }
+    }
+
+    /**
+     * A listener who hears even the lowest level kept the original search lowering the level
+     * forever once it reached 0 dB
+     */
+    @Test
+    public void finishesWhenLowestLevelIsHeard() {
+        for (String method : METHODS) {
+            ThresholdStrategy strategy = search(method, listener(ThresholdStrategy.MIN_LEVEL - 50, 0, 0), 30, new Random(3));
+            assertTrue(method + " used " + strategy.getPresentations() + " presentations", strategy.getPresentations() <= cap(method));
+            assertEquals(method, ThresholdStrategy.MIN_LEVEL, strategy.getThreshold(), 5);
+        }
+    }
+
+    @Test
+    public void finishesWhenHighestLevelIsNotHeard() {
+        for (String method : METHODS) {
+            ThresholdStrategy strategy = search(method, listener(ThresholdStrategy.MAX_LEVEL + 50, 0, 0), 30, new Random(4));
+            assertTrue(method + " used " + strategy.getPresentations() + " presentations", strategy.getPresentations() <= cap(method));
+            assertEquals(method, ThresholdStrategy.MAX_LEVEL, strategy.getThreshold(), 5);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.woheller69.audiometry;
+
+/**
+ * Clock that does not wait but only advances its time, used for simulated tests
+ */
+public class VirtualClock implements TestClock {
+    private long now;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long start) {
+        now = start;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void sleep(long millis) {
+        if (millis > 0) now += millis;
+    }
+}
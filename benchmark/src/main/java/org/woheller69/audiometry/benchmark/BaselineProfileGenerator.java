@@ -0,0 +1,32 @@
+package org.woheller69.audiometry.benchmark;
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import kotlin.Unit;
+
+/**
+ * Collects the classes and methods used by startup and the journeys into the baseline profile
+ * of the app, run by :app:generateBaselineProfile which copies the result to app/src/release/generated.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator {
+
+    @Rule
+    public BaselineProfileRule rule = new BaselineProfileRule();
+
+    @Test
+    public void generate() {
+        rule.collect(Journeys.PACKAGE, scope -> {
+            Journeys.seed(scope);
+            Journeys.launch(scope);
+            if (Journeys.openHistory(scope)) Journeys.pageResults(scope);
+            Journeys.startEnhancement(scope);
+            return Unit.INSTANCE;
+        });
+    }
+}
@@ -0,0 +1,60 @@
+package org.woheller69.audiometry.benchmark;
+
+import androidx.benchmark.macro.BaselineProfileMode;
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.Metric;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import kotlin.Unit;
+
+/**
+ * Launch, open the history, page through results and start the enhancement. Besides the frame
+ * timing the spans of the app (see Spans in the app) for the first list load, chart and model
+ * load are measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JourneyBenchmark {
+    private static final int ITERATIONS = 5;
+
+    @Rule
+    public MacrobenchmarkRule rule = new MacrobenchmarkRule();
+
+    @Test
+    public void journeyNoCompilation() {
+        journey(new CompilationMode.None());
+    }
+
+    @Test
+    public void journeyBaselineProfile() {
+        journey(new CompilationMode.Partial(BaselineProfileMode.Require, 0));
+    }
+
+    private void journey(CompilationMode compilationMode) {
+        List<Metric> metrics = Arrays.asList(new FrameTimingMetric(),
+                new TraceSectionMetric("TestLookup.loadTests"),
+                new TraceSectionMetric("TestData.draw"),
+                new TraceSectionMetric("AudioEnhancer.loadModels"));
+        rule.measureRepeated(Journeys.PACKAGE, metrics, compilationMode, StartupMode.COLD, ITERATIONS,
+                scope -> {
+                    Journeys.seed(scope);  //the process is killed again before the cold start
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    Journeys.launch(scope);
+                    if (Journeys.openHistory(scope)) Journeys.pageResults(scope);
+                    Journeys.startEnhancement(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -0,0 +1,95 @@
+package org.woheller69.audiometry.benchmark;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Direction;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+/**
+ * User journeys shared by the benchmarks and the baseline profile generator.
+ * The history buttons are only shown after a calibration, so seed() writes a calibration and
+ * tests first, which also makes the list and the charts draw the same data on every device.
+ */
+public class Journeys {
+    public static final String PACKAGE = "org.woheller69.audiometry";
+    private static final long TIMEOUT = 5000;  // ms
+
+    /**
+     * Writes a calibration and tests with SeedActivity, which only the app variants built for
+     * this module contain. Existing data is kept.
+     */
+    public static void seed(MacrobenchmarkScope scope) {
+        scope.getDevice().executeShellCommand("am start -W -n " + PACKAGE + "/.SeedActivity");
+    }
+
+    /**
+     * Starts MainActivity and waits for its first frame
+     */
+    public static void launch(MacrobenchmarkScope scope) {
+        scope.pressHome();
+        scope.startActivityAndWait();
+        scope.getDevice().wait(Until.hasObject(By.res(PACKAGE, "main_audio_enhancement")), TIMEOUT);
+    }
+
+    /**
+     * Opens the test list from the main screen and flings through it
+     * @return false if there is no history button
+     */
+    public static boolean openHistory(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        UiObject2 results = device.findObject(By.res(PACKAGE, "main_results"));
+        if (results == null) return false;
+        results.click();
+        UiObject2 list = device.wait(Until.findObject(By.res(PACKAGE, "test_list")), TIMEOUT);
+        if (list == null) return false;
+        list.setGestureMargin(device.getDisplayWidth() / 5);
+        list.fling(Direction.DOWN);
+        device.waitForIdle();
+        list.fling(Direction.UP);
+        device.waitForIdle();
+        return true;
+    }
+
+    /**
+     * Opens the newest test of the list and pages to older tests with prev, each loading a test
+     * in the background and drawing the chart. next would stay on the newest test.
+     */
+    public static void pageResults(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        UiObject2 list = device.findObject(By.res(PACKAGE, "test_list"));
+        if (list == null || list.getChildCount() == 0) return;
+        int pages = Math.min(list.getChildCount() - 1, 3);
+        list.getChildren().get(0).click();
+        if (!device.wait(Until.hasObject(By.res(PACKAGE, "chart")), TIMEOUT)) return;
+        for (int k = 0; k < pages; k++) {
+            UiObject2 prev = device.findObject(By.res(PACKAGE, "prev"));
+            if (prev == null) break;
+            prev.click();
+            device.waitForIdle();
+        }
+        device.pressBack();
+        device.wait(Until.hasObject(By.res(PACKAGE, "test_list")), TIMEOUT);
+        device.pressBack();
+        device.wait(Until.hasObject(By.res(PACKAGE, "main_audio_enhancement")), TIMEOUT);
+    }
+
+    /**
+     * Opens the audio enhancement screen, which loads the TensorFlow Lite models, and starts it
+     */
+    public static void startEnhancement(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        device.executeShellCommand("pm grant " + PACKAGE + " android.permission.RECORD_AUDIO");
+        UiObject2 enhancement = device.findObject(By.res(PACKAGE, "main_audio_enhancement"));
+        if (enhancement == null) return;
+        enhancement.click();
+        UiObject2 start = device.wait(Until.findObject(By.res(PACKAGE, "start_stop_button")), TIMEOUT);
+        if (start == null) return;
+        start.click();
+        device.waitForIdle();
+        start.click();  //stop again
+        device.waitForIdle();
+        device.pressBack();
+    }
+}